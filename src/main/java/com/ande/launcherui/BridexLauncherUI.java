@@ -135,6 +135,15 @@ public class BridexLauncherUI implements UIProvider{
 	public void updateProgress(double progress) {
 		progressBar.setProgress(progress);
 	}
+
+        @Override
+        public void updateProgress(double progress, long bytesPerSecond, long secondsRemaining) {
+            updateProgress(progress);
+            if (bytesPerSecond > 0 && secondsRemaining >= 0) {
+                label.setText(String.format("Updating... %.1f MB/s, %d:%02d remaining",
+                        bytesPerSecond / (1024.0 * 1024.0), secondsRemaining / 60, secondsRemaining % 60));
+            }
+        }
         
         public void setLabelProgress(String text){
             label.setText(text);
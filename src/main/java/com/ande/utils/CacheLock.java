@@ -0,0 +1,109 @@
+package com.ande.utils;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An exclusive lock on a file in a cache dir that is shared between processes, e.g. by all
+ * users of a terminal server.
+ * <p>
+ * Like {@link SingleInstance} this uses a {@link FileLock}. A file lock is held on behalf of the whole
+ * JVM, so threads in the same process are serialized by an additional in-process lock per path.
+ * Lock files are left in place on release. Deleting them would let a waiting process lock a file
+ * that a newly arriving process no longer sees.
+ */
+public class CacheLock implements AutoCloseable {
+
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    private static final ConcurrentMap<Path, ReentrantLock> localLocks = new ConcurrentHashMap<>();
+
+    private final ReentrantLock localLock;
+    private final FileChannel channel;
+    private final FileLock fileLock;
+
+    private CacheLock(ReentrantLock localLock, FileChannel channel, FileLock fileLock) {
+        this.localLock = localLock;
+        this.channel = channel;
+        this.fileLock = fileLock;
+    }
+
+    /**
+     * Lock the given file, waiting as long as another thread or process holds it.
+     */
+    public static CacheLock acquire(Path lockFile) throws IOException {
+        ReentrantLock localLock = localLock(lockFile);
+        localLock.lock();
+        try {
+            FileChannel channel = open(lockFile);
+            try {
+                return new CacheLock(localLock, channel, channel.lock());
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+        } catch (IOException | RuntimeException e) {
+            localLock.unlock();
+            throw e;
+        }
+    }
+
+    /**
+     * Lock the given file if nobody else holds it.
+     *
+     * @return The lock, or null if another thread or process holds it
+     */
+    public static CacheLock tryAcquire(Path lockFile) throws IOException {
+        ReentrantLock localLock = localLock(lockFile);
+        if (!localLock.tryLock()) return null;
+        try {
+            FileChannel channel = open(lockFile);
+            FileLock fileLock;
+            try {
+                fileLock = channel.tryLock();
+            } catch (IOException | RuntimeException e) {
+                channel.close();
+                throw e;
+            }
+            if (fileLock == null) {
+                channel.close();
+                localLock.unlock();
+                return null;
+            }
+            return new CacheLock(localLock, channel, fileLock);
+        } catch (IOException | RuntimeException e) {
+            localLock.unlock();
+            throw e;
+        }
+    }
+
+    private static ReentrantLock localLock(Path lockFile) {
+        return localLocks.computeIfAbsent(lockFile.toAbsolutePath().normalize(), p -> new ReentrantLock());
+    }
+
+    private static FileChannel open(Path lockFile) throws IOException {
+        Files.createDirectories(lockFile.toAbsolutePath().getParent());
+        return FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+    }
+
+    @Override
+    public void close() {
+        try {
+            fileLock.release();
+            channel.close();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to release cache lock", e);
+        } finally {
+            localLock.unlock();
+        }
+    }
+}
@@ -5,20 +5,179 @@
  */
 package com.ande.utils;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Properties;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
+ * Makes sure only one instance of the launcher runs per user and lock file.
+ * <p>
+ * The first instance holds a {@link FileLock} on the lock file and listens on a loopback socket whose
+ * port and a random token are written to <code>&lt;lockFile&gt;.port</code>. A second launch fails to get
+ * the lock, forwards its arguments to the running instance and exits, long before JavaFX or the manifest
+ * are initialized. The running instance receives the arguments through an {@link ActivationListener}.
  *
  * @author COMPAQ
  */
 public class SingleInstance {
-    
+
     private static final Logger log = Logger.getLogger("Launcher");
-    
+
+    private static final int CONNECT_TIMEOUT = 1000;
+    private static final int CONNECT_ATTEMPTS = 20;
+
+    /**
+     * Called on a background thread when a second launch forwarded its arguments.
+     */
+    public interface ActivationListener {
+        void activated(List<String> args);
+    }
+
+    /**
+     * Become the single running instance, or hand the arguments to the instance that already runs.
+     *
+     * @param lockFile The lock file identifying the instance
+     * @param args The command line arguments of this launch
+     * @param listener Receives the arguments of later launches if this becomes the running instance, or null
+     * to only take the lock and leave listening to a process started later, see {@link #listen(Path, ActivationListener)}
+     * @return true if this process is the running instance and should continue, false if the arguments
+     * were forwarded and this process should exit
+     */
+    public static boolean start(final Path lockFile, final String[] args, final ActivationListener listener) {
+        Path portFile = lockFile.resolveSibling(lockFile.getFileName() + ".port");
+        try {
+            Files.createDirectories(lockFile.toAbsolutePath().getParent());
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to create lock file directory: " + lockFile, e);
+            return true;
+        }
+
+        if (lockInstance(lockFile.toString())) {
+            if (listener != null) {
+                listenOn(portFile, listener);
+            } else {
+                // Later launches wait for the listening process instead of trying a port from an earlier run
+                try {
+                    Files.deleteIfExists(portFile);
+                } catch (IOException e) {
+                    log.log(Level.FINE, "Unable to remove port file: " + portFile, e);
+                }
+            }
+            return true;
+        }
+
+        // The running instance may still be starting up and not have written its port yet
+        for (int attempt = 0; attempt < CONNECT_ATTEMPTS; attempt++) {
+            if (forward(portFile, args)) return false;
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                break;
+            }
+        }
+
+        log.warning("Unable to reach the running instance, starting another one");
+        return true;
+    }
+
+    /**
+     * Receive the arguments of later launches for a lock that is already held, e.g. by the parent process
+     * that started this one with {@link #start(Path, String[], ActivationListener)} and a null listener.
+     */
+    public static void listen(final Path lockFile, final ActivationListener listener) {
+        listenOn(lockFile.resolveSibling(lockFile.getFileName() + ".port"), listener);
+    }
+
+    private static void listenOn(final Path portFile, final ActivationListener listener) {
+        try {
+            byte[] secret = new byte[32];
+            new SecureRandom().nextBytes(secret);
+            final String token = Base64.getEncoder().encodeToString(secret);
+
+            final ServerSocket server = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+            Properties props = new Properties();
+            props.setProperty("port", String.valueOf(server.getLocalPort()));
+            props.setProperty("token", token);
+            Path temp = portFile.resolveSibling(portFile.getFileName() + ".tmp");
+            try (OutputStream output = Files.newOutputStream(temp)) {
+                props.store(output, null);
+            }
+            Files.move(temp, portFile, StandardCopyOption.REPLACE_EXISTING);
+
+            Thread acceptor = new Thread(() -> {
+                while (!server.isClosed()) {
+                    try (Socket socket = server.accept()) {
+                        socket.setSoTimeout(CONNECT_TIMEOUT);
+                        DataInputStream input = new DataInputStream(socket.getInputStream());
+                        if (!token.equals(input.readUTF())) continue;
+
+                        int count = input.readInt();
+                        List<String> args = new ArrayList<>();
+                        for (int i = 0; i < count; i++) args.add(input.readUTF());
+                        socket.getOutputStream().write(1);
+
+                        listener.activated(args);
+                    } catch (Exception e) {
+                        log.log(Level.WARNING, "Unable to accept activation from second instance", e);
+                    }
+                }
+            }, "FXLauncher-SingleInstance");
+            acceptor.setDaemon(true);
+            acceptor.start();
+        } catch (IOException e) {
+            log.log(Level.WARNING, "Unable to listen for second instances: " + portFile, e);
+        }
+    }
+
+    private static boolean forward(Path portFile, String[] args) {
+        if (!Files.exists(portFile)) return false;
+        try {
+            Properties props = new Properties();
+            try (InputStream input = Files.newInputStream(portFile)) {
+                props.load(input);
+            }
+
+            try (Socket socket = new Socket()) {
+                int port = Integer.parseInt(props.getProperty("port"));
+                socket.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), CONNECT_TIMEOUT);
+                socket.setSoTimeout(CONNECT_TIMEOUT);
+
+                DataOutputStream output = new DataOutputStream(socket.getOutputStream());
+                output.writeUTF(props.getProperty("token"));
+                output.writeInt(args.length);
+                for (String arg : args) output.writeUTF(arg);
+                output.flush();
+
+                return socket.getInputStream().read() == 1;
+            }
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.FINE, "Unable to forward arguments " + Arrays.toString(args), e);
+            return false;
+        }
+    }
+
     private static boolean lockInstance(final String lockFile) {
         try {
             final File file = new File(lockFile);
@@ -38,6 +197,7 @@ public class SingleInstance {
                 });
                 return true;
             }
+            randomAccessFile.close();
         } catch (Exception e) {
             log.log(Level.WARNING,"Unable to create and/or lock file: " + lockFile, e);
         }
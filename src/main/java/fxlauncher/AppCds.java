@@ -0,0 +1,144 @@
+package fxlauncher;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * Runs the launcher in a child JVM that uses a dynamic AppCDS archive of the app classes, enabled with
+ * <code>--app-cds=true</code>.
+ * <p>
+ * The first launch after an update records the loaded classes and dumps them into an archive in the cache
+ * dir when the JVM exits. Later launches map that archive and skip most of the class loading and
+ * verification. The archive is named after a key over the manifest <code>ts</code>, the checksum of every
+ * library file and the JVM version, so any change to the app or the runtime selects a new archive. Stale
+ * archives are removed.
+ * <p>
+ * Dynamic archives need Java 13 or later, on older runtimes the launcher simply starts in this JVM.
+ */
+class AppCds {
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    static final String CHILD_PROPERTY = "fxlauncher.cds";
+    static final String DIRECTORY = "cds";
+
+    /**
+     * Relaunch in a child JVM with the archive for the cached manifest if AppCDS is enabled.
+     *
+     * @return true if the launcher ran in a child JVM, false if the launcher should start in this JVM
+     */
+    static boolean relaunch(String[] args, Map<String, String> namedParams, FXManifest manifest) {
+        if (!Boolean.parseBoolean(namedParams.get("app-cds"))) return false;
+        if (System.getProperty(CHILD_PROPERTY) != null || manifest == null) return false;
+        if (javaVersion() < 13) {
+            log.info("AppCDS archives need Java 13 or later, starting without");
+            return false;
+        }
+
+        try {
+            Path cacheDir = manifest.resolveCacheDir(namedParams);
+            Path directory = cacheDir.resolve(FileStateIndex.DIRECTORY).resolve(DIRECTORY);
+            Files.createDirectories(directory);
+
+            Path archive = directory.resolve(String.format("app-%s.jsa", key(manifest)));
+            removeStale(directory, archive);
+
+            List<String> command = new ArrayList<>();
+            command.add(Paths.get(System.getProperty("java.home"), "bin", javaExecutable()).toString());
+            for (String arg : ManagementFactory.getRuntimeMXBean().getInputArguments()) {
+                if (!arg.startsWith("-XX:SharedArchiveFile") && !arg.startsWith("-XX:ArchiveClassesAtExit"))
+                    command.add(arg);
+            }
+            if (Files.exists(archive)) {
+                log.info(String.format("Using AppCDS archive %s", archive));
+                command.add("-XX:SharedArchiveFile=" + archive);
+            } else {
+                log.info(String.format("Recording AppCDS archive %s", archive));
+                command.add("-XX:ArchiveClassesAtExit=" + archive);
+            }
+            command.add(String.format("-D%s=%s", CHILD_PROPERTY, archive));
+            command.add("-cp");
+            command.add(System.getProperty("java.class.path"));
+            command.add(Launcher.class.getName());
+            command.addAll(Arrays.asList(args));
+
+            Process child = new ProcessBuilder(command).inheritIO().start();
+            System.exit(child.waitFor());
+            return true;
+        } catch (IOException | RuntimeException e) {
+            log.log(Level.WARNING, "Unable to relaunch with AppCDS archive, starting without", e);
+            return false;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return true;
+        }
+    }
+
+    /**
+     * A key over everything the archived classes depend on.
+     */
+    static String key(FXManifest manifest) {
+        StringBuilder content = new StringBuilder()
+                .append(System.getProperty("java.vm.version")).append('\n')
+                .append(manifest.ts).append('\n');
+        for (LibraryFile lib : manifest.files)
+            content.append(lib.file).append('\t').append(lib.checksum).append('\n');
+
+        CRC32 crc = new CRC32();
+        crc.update(content.toString().getBytes(StandardCharsets.UTF_8));
+        return String.format("%08x", crc.getValue());
+    }
+
+    private static void removeStale(Path directory, Path archive) {
+        try (DirectoryStream<Path> archives = Files.newDirectoryStream(directory, "app-*.jsa")) {
+            for (Path stale : archives) {
+                if (!stale.equals(archive)) Files.deleteIfExists(stale);
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, String.format("Unable to remove stale AppCDS archives in %s", directory), e);
+        }
+    }
+
+    /**
+     * The name of the java executable that runs this JVM, so a launcher started with <code>javaw</code>
+     * doesn't open a console window for the child on Windows. ProcessHandle is looked up reflectively
+     * since the launcher is compiled for Java 8.
+     */
+    private static String javaExecutable() {
+        try {
+            Class<?> handleClass = Class.forName("java.lang.ProcessHandle");
+            Object handle = handleClass.getMethod("current").invoke(null);
+            Object info = handleClass.getMethod("info").invoke(handle);
+            Optional<?> command = (Optional<?>) Class.forName("java.lang.ProcessHandle$Info").getMethod("command").invoke(info);
+            if (command.isPresent()) {
+                String name = Paths.get(command.get().toString()).getFileName().toString();
+                if (name.equalsIgnoreCase("javaw") || name.equalsIgnoreCase("javaw.exe")) return "javaw";
+            }
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            log.log(Level.FINE, "Unable to determine the java executable", e);
+        }
+        return "java";
+    }
+
+    private static int javaVersion() {
+        String version = System.getProperty("java.specification.version");
+        if (version.startsWith("1.")) version = version.substring(2);
+        try {
+            return Integer.parseInt(version);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
+    }
+}
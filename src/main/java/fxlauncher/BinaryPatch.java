@@ -0,0 +1,146 @@
+package fxlauncher;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Creates and applies binary patches between two versions of a library file.
+ * <p>
+ * The old file is split into fixed size blocks which are indexed by a rolling hash. The new file is then
+ * scanned byte by byte, and every region that also exists in the old file, even at another offset, is
+ * encoded as a copy instruction while everything else is stored as literal bytes. The instruction stream
+ * is deflated, so unchanged regions cost a few bytes and changed regions roughly their compressed size.
+ * <p>
+ * Patch format (before deflate): the magic <code>FXDP</code>, the size of the new file, then a sequence of
+ * <code>COPY offset length</code> and <code>INSERT length bytes</code> instructions terminated by <code>END</code>.
+ */
+class BinaryPatch {
+    private static final int MAGIC = 0x46584450; // FXDP
+    private static final int BLOCK = 512;
+    private static final int PRIME = 31;
+
+    private static final byte END = 0;
+    private static final byte COPY = 1;
+    private static final byte INSERT = 2;
+
+    /**
+     * Write a patch that transforms the old file into the new file.
+     */
+    static void create(Path oldFile, Path newFile, OutputStream patch) throws IOException {
+        byte[] source = Files.readAllBytes(oldFile);
+        byte[] target = Files.readAllBytes(newFile);
+
+        Map<Integer, Integer> blocks = new HashMap<>();
+        for (int offset = 0; offset + BLOCK <= source.length; offset += BLOCK)
+            blocks.putIfAbsent(hash(source, offset), offset);
+
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new DeflaterOutputStream(patch)));
+        out.writeInt(MAGIC);
+        out.writeLong(target.length);
+
+        int power = 1;
+        for (int i = 1; i < BLOCK; i++) power *= PRIME;
+
+        int literalStart = 0;
+        int pos = 0;
+        int rolling = target.length >= BLOCK ? hash(target, 0) : 0;
+
+        while (pos + BLOCK <= target.length) {
+            Integer candidate = blocks.get(rolling);
+            if (candidate != null && regionMatches(source, candidate, target, pos, BLOCK)) {
+                int length = BLOCK;
+                while (candidate + length < source.length && pos + length < target.length
+                        && source[candidate + length] == target[pos + length])
+                    length++;
+
+                writeInsert(out, target, literalStart, pos - literalStart);
+                out.writeByte(COPY);
+                out.writeLong(candidate);
+                out.writeInt(length);
+
+                pos += length;
+                literalStart = pos;
+                if (pos + BLOCK <= target.length) rolling = hash(target, pos);
+            } else {
+                if (pos + BLOCK < target.length)
+                    rolling = (rolling - target[pos] * power) * PRIME + target[pos + BLOCK];
+                pos++;
+            }
+        }
+
+        writeInsert(out, target, literalStart, target.length - literalStart);
+        out.writeByte(END);
+        out.flush();
+        out.close();
+    }
+
+    /**
+     * Apply a patch to the old file and write the resulting new file to the output.
+     *
+     * @return The number of bytes written
+     */
+    static long apply(Path oldFile, InputStream patch, OutputStream output) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new InflaterInputStream(patch)));
+        if (in.readInt() != MAGIC) throw new IOException("Not a binary patch");
+        long expected = in.readLong();
+        long written = 0;
+
+        byte[] buf = new byte[65536];
+        try (RandomAccessFile source = new RandomAccessFile(oldFile.toFile(), "r")) {
+            byte op;
+            while ((op = in.readByte()) != END) {
+                if (op == COPY) {
+                    source.seek(in.readLong());
+                    int remaining = in.readInt();
+                    while (remaining > 0) {
+                        int read = Math.min(buf.length, remaining);
+                        source.readFully(buf, 0, read);
+                        output.write(buf, 0, read);
+                        remaining -= read;
+                        written += read;
+                    }
+                } else if (op == INSERT) {
+                    int remaining = in.readInt();
+                    while (remaining > 0) {
+                        int read = Math.min(buf.length, remaining);
+                        in.readFully(buf, 0, read);
+                        output.write(buf, 0, read);
+                        remaining -= read;
+                        written += read;
+                    }
+                } else {
+                    throw new IOException(String.format("Corrupt binary patch, unknown instruction %d", op));
+                }
+            }
+        }
+
+        if (written != expected)
+            throw new IOException(String.format("Binary patch produced %d bytes, expected %d", written, expected));
+        return written;
+    }
+
+    private static void writeInsert(DataOutputStream out, byte[] data, int offset, int length) throws IOException {
+        if (length == 0) return;
+        out.writeByte(INSERT);
+        out.writeInt(length);
+        out.write(data, offset, length);
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = 0; i < BLOCK; i++)
+            h = h * PRIME + data[offset + i];
+        return h;
+    }
+
+    private static boolean regionMatches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++)
+            if (a[aOffset + i] != b[bOffset + i]) return false;
+        return true;
+    }
+}
@@ -0,0 +1,157 @@
+package fxlauncher;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.ZipException;
+
+/**
+ * Persistent record of the directories every library file in the cache dir contains.
+ * <p>
+ * The {@link IndexedClassLoader} uses it to go straight to the jars that own the package of a class or
+ * resource instead of searching every jar in order. Entries are keyed by file and by the size and
+ * modification time of the jar that was scanned, so a jar is scanned again whenever the file on disk
+ * changed, whichever version of it the manifest expects.
+ * <p>
+ * The index is stored as <code>.fxlauncher/classes.index</code> inside the cache dir, one tab separated
+ * line per file: the file, its size and modification time and the directories it contains. The root
+ * directory is an empty field.
+ */
+class ClassIndex {
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    static final String FILENAME = "classes.index";
+
+    private final Path indexPath;
+    private final Map<String, Entry> entries = new HashMap<>();
+    private boolean dirty;
+
+    private static class Entry {
+        final String state;
+        final Set<String> directories;
+
+        Entry(String state, Set<String> directories) {
+            this.state = state;
+            this.directories = directories;
+        }
+    }
+
+    private ClassIndex(Path indexPath) {
+        this.indexPath = indexPath;
+    }
+
+    /**
+     * Load the class index for the given cache dir. A missing or unreadable index yields an empty one.
+     */
+    static ClassIndex load(Path cacheDir) {
+        ClassIndex index = new ClassIndex(cacheDir.resolve(FileStateIndex.DIRECTORY).resolve(FILENAME));
+        if (!Files.exists(index.indexPath)) return index;
+
+        try (BufferedReader reader = Files.newBufferedReader(index.indexPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t", -1);
+                if (fields.length < 2) continue;
+                Set<String> directories = new HashSet<>(Arrays.asList(fields).subList(2, fields.length));
+                index.entries.put(fields[0], new Entry(fields[1], directories));
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, String.format("Ignoring unreadable class index %s", index.indexPath), e);
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    /**
+     * The directories contained in the library file, scanning the file if the index has no entry for
+     * the file as it is on disk. A missing file contains no directories.
+     */
+    Set<String> directories(LibraryFile lib, Path cacheDir) throws IOException {
+        Path path = cacheDir.resolve(lib.file);
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        } catch (NoSuchFileException e) {
+            return Collections.emptySet();
+        }
+        String state = String.format("%d:%d", attrs.size(), attrs.lastModifiedTime().toMillis());
+
+        Entry entry = entries.get(lib.file);
+        if (entry != null && entry.state.equals(state)) return entry.directories;
+
+        Set<String> directories = scan(path);
+        entries.put(lib.file, new Entry(state, directories));
+        dirty = true;
+        return directories;
+    }
+
+    /**
+     * Forget every file that is not part of the given libraries.
+     */
+    void retain(Collection<LibraryFile> libs) {
+        Set<String> files = new HashSet<>();
+        for (LibraryFile lib : libs) files.add(lib.file);
+        if (entries.keySet().retainAll(files)) dirty = true;
+    }
+
+    /**
+     * Write the index back to the cache dir if anything changed.
+     */
+    void save() {
+        if (!dirty) return;
+        try {
+            Files.createDirectories(indexPath.getParent());
+            Path temp = Files.createTempFile(indexPath.getParent(), FILENAME, ".tmp");
+            try {
+                try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    for (Map.Entry<String, Entry> it : entries.entrySet()) {
+                        StringBuilder line = new StringBuilder(it.getKey()).append('\t').append(it.getValue().state);
+                        for (String directory : it.getValue().directories) line.append('\t').append(directory);
+                        writer.write(line.toString());
+                        writer.newLine();
+                    }
+                }
+                PartialDownload.moveAtomically(temp, indexPath);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            dirty = false;
+        } catch (IOException e) {
+            log.log(Level.WARNING, String.format("Unable to write class index %s", indexPath), e);
+        }
+    }
+
+    /**
+     * List the directories in a jar, the root directory included as an empty string.
+     * Files that are not jars, e.g. native libraries, contain no directories.
+     */
+    static Set<String> scan(Path file) throws IOException {
+        Set<String> found = new HashSet<>();
+        try (JarFile jarFile = new JarFile(file.toFile())) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                if (entry.isDirectory()) continue;
+                found.add(directoryOf(entry.getName()));
+            }
+        } catch (ZipException e) {
+            log.fine(String.format("Not indexing %s, it is not a jar", file));
+        }
+        return found;
+    }
+
+    static String directoryOf(String name) {
+        int slash = name.lastIndexOf('/');
+        return slash > 0 ? name.substring(0, slash) : "";
+    }
+}
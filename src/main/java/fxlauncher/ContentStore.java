@@ -0,0 +1,103 @@
+package fxlauncher;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A content-addressed store of library files shared by every manifest and cache dir on the machine.
+ * <p>
+ * Each file is stored once under <code>objects/&lt;checksum&gt;-&lt;size&gt;/&lt;filename&gt;</code>, keeping the
+ * original filename so jar names in stack traces stay readable. A cache dir gets its view of the store
+ * through hard links, so a third party jar that is shared between apps or channels is downloaded and
+ * stored only once. Where hard links are not supported, e.g. across volumes, the file is copied instead.
+ * <p>
+ * Objects are never modified in place. The launcher always replaces cache files by moving a new file over
+ * them, which breaks the link and leaves the stored object intact.
+ */
+class ContentStore {
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    private final Path root;
+
+    ContentStore(Path root) {
+        this.root = root;
+    }
+
+    Path objectPath(LibraryFile lib) {
+        Path name = Paths.get(lib.file).getFileName();
+        return root.resolve("objects")
+                .resolve(String.format("%08x-%d", lib.checksum, lib.size))
+                .resolve(name.toString());
+    }
+
+    /**
+     * True if the store holds the version of the file described by the manifest entry.
+     */
+    boolean contains(LibraryFile lib) {
+        Path object = objectPath(lib);
+        try {
+            return Files.exists(object) && Files.size(object) == lib.size;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Make the stored object available at the target path in a cache dir. The store is shared between
+     * users, so the object is verified against the manifest checksum before it is linked. An object that
+     * doesn't match is removed from the store.
+     */
+    void link(LibraryFile lib, Path target) throws IOException {
+        Files.createDirectories(target.getParent());
+        Path temp = target.resolveSibling(target.getFileName() + ".link");
+        Files.deleteIfExists(temp);
+        try {
+            try {
+                Files.createLink(temp, objectPath(lib));
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(objectPath(lib), temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (LibraryFile.checksum(temp) != lib.checksum) {
+                Files.deleteIfExists(objectPath(lib));
+                throw new IOException(String.format("Stored object %s does not match manifest", objectPath(lib)));
+            }
+            PartialDownload.moveAtomically(temp, target);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Add a verified file from a cache dir to the store, so other manifests can link to it.
+     * Several processes may add the same object at once, the first one to move it into place wins.
+     */
+    void add(LibraryFile lib, Path source) {
+        Path object = objectPath(lib);
+        if (contains(lib)) return;
+
+        try {
+            Files.createDirectories(object.getParent());
+            Path temp = object.resolveSibling(String.format("%s.%s.tmp", object.getFileName(), UUID.randomUUID()));
+            Files.deleteIfExists(temp);
+            try {
+                Files.createLink(temp, source);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+            }
+            try {
+                Files.move(temp, object);
+            } catch (FileAlreadyExistsException e) {
+                Files.delete(temp);
+            }
+        } catch (IOException e) {
+            log.log(Level.WARNING, String.format("Unable to add %s to shared store %s", lib.file, root), e);
+        }
+    }
+}
@@ -3,17 +3,28 @@ package fxlauncher;
 import com.sun.javafx.application.ParametersImpl;
 
 import javax.xml.bind.JAXB;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
 import java.net.URI;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.*;
 import java.nio.file.attribute.BasicFileAttributes;
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
+import java.util.*;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 public class CreateManifest {
+    /** Modification times of the files in sub-manifests, kept next to them for incremental generation only */
+    private static final String MODIFIED_CACHE = "modified.properties";
+
     private static ArrayList<String> includeExtensions = new ArrayList<>();
 
     static {
@@ -29,6 +40,14 @@ public class CreateManifest {
         Boolean acceptDowngrade = null;
         String parameters = null;
         String preloadNativeLibraries = null;
+        Path previousRelease = null;
+        boolean compress = false;
+        boolean incremental = false;
+        String lazy = null;
+        String startup = null;
+        String mirrors = null;
+        Long packThreshold = null;
+        boolean split = false;
 
         if (args.length > 3) {
             // Parse named parameters
@@ -50,6 +69,38 @@ public class CreateManifest {
                 if (named.containsKey("preload-native-libraries"))
                     preloadNativeLibraries = named.get("preload-native-libraries");
 
+                // Create binary patches against the previous release
+                if (named.containsKey("previous-release"))
+                    previousRelease = Paths.get(named.get("previous-release"));
+
+                // Publish gzip compressed siblings
+                if (named.containsKey("compress"))
+                    compress = LibraryFile.GZIP.equals(named.get("compress"));
+
+                // Reuse checksums of unchanged files from the previous app.xml
+                if (named.containsKey("incremental"))
+                    incremental = Boolean.valueOf(named.get("incremental"));
+
+                // Mark libraries matching these globs as lazy
+                if (named.containsKey("lazy"))
+                    lazy = named.get("lazy");
+
+                // Mark libraries matching these globs as the startup set
+                if (named.containsKey("startup"))
+                    startup = named.get("startup");
+
+                // Comma separated base URIs that serve the same files
+                if (named.containsKey("mirrors"))
+                    mirrors = named.get("mirrors");
+
+                // Group files smaller than this many kilobytes into pack archives
+                if (named.containsKey("pack-threshold-kb"))
+                    packThreshold = Long.valueOf(named.get("pack-threshold-kb")) * 1024;
+
+                // List the files of every directory in a sub-manifest
+                if (named.containsKey("split-manifest"))
+                    split = Boolean.valueOf(named.get("split-manifest"));
+
                 // Add additional files with these extensions to manifest
                 if (named.containsKey("include-extensions"))
                     includeExtensions.addAll(
@@ -66,6 +117,14 @@ public class CreateManifest {
                 if (raw.startsWith("--accept-downgrade=")) continue;
                 if (raw.startsWith("--include-extensions=")) continue;
                 if (raw.startsWith("--preload-native-libraries=")) continue;
+                if (raw.startsWith("--previous-release=")) continue;
+                if (raw.startsWith("--compress=")) continue;
+                if (raw.startsWith("--incremental=")) continue;
+                if (raw.startsWith("--lazy=")) continue;
+                if (raw.startsWith("--startup=")) continue;
+                if (raw.startsWith("--mirrors=")) continue;
+                if (raw.startsWith("--pack-threshold-kb=")) continue;
+                if (raw.startsWith("--split-manifest=")) continue;
                 if (rest.length() > 0) rest.append(" ");
                 rest.append(raw);
             }
@@ -75,32 +134,332 @@ public class CreateManifest {
                 parameters = rest.toString();
         }
 
-        FXManifest manifest = create(baseURI, launchClass, appPath);
+        FXManifest previous = null;
+        Path previousManifest = appPath.resolve("app.xml");
+        if (incremental && Files.exists(previousManifest)) {
+            previous = ManifestReader.read(previousManifest);
+            previous.resolveParts(previousManifest.toUri(), null);
+            restoreModified(previous, appPath);
+        }
+
+        FXManifest manifest = create(baseURI, launchClass, appPath, previous);
         if (cacheDir != null) manifest.cacheDir = cacheDir;
         if (acceptDowngrade != null) manifest.acceptDowngrade = acceptDowngrade;
         if (parameters != null) manifest.parameters = parameters;
         if (preloadNativeLibraries != null) manifest.preloadNativeLibraries = preloadNativeLibraries;
+        if (mirrors != null)
+            for (String mirror : mirrors.split(","))
+                if (!mirror.trim().isEmpty()) manifest.mirrors.add(URI.create(mirror.trim()));
+        if (lazy != null) markLazy(manifest, appPath, lazy);
+        if (startup != null) markStartup(manifest, appPath, startup);
+        if (previousRelease != null) createPatches(manifest, appPath, previousRelease);
+        if (compress) createCompressed(manifest, appPath);
+        if (packThreshold != null) createPacks(manifest, appPath, packThreshold);
+        if (split) splitManifest(manifest, appPath);
 
         JAXB.marshal(manifest, appPath.resolve("app.xml").toFile());
     }
 
     public static FXManifest create(URI baseURI, String launchClass, Path appPath) throws IOException {
+        return create(baseURI, launchClass, appPath, null);
+    }
+
+    /**
+     * Create a manifest for all files in the app path. Files are hashed in parallel on all cores.
+     *
+     * @param previous The previously generated manifest whose checksums are reused for files with
+     *                 unchanged size and modification time, or null to hash every file
+     */
+    public static FXManifest create(URI baseURI, String launchClass, Path appPath, FXManifest previous) throws IOException {
         FXManifest manifest = new FXManifest();
         manifest.ts = System.currentTimeMillis();
         manifest.uri = baseURI;
         manifest.launchClass = launchClass;
 
+        List<Path> files = new ArrayList<>();
         Files.walkFileTree(appPath, new SimpleFileVisitor<Path>() {
             public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
                 if (!Files.isDirectory(file) && shouldIncludeInManifest(file) && !file.getFileName().toString().startsWith("fxlauncher"))
-                    manifest.files.add(new LibraryFile(appPath, file));
+                    files.add(file);
                 return FileVisitResult.CONTINUE;
             }
         });
 
+        try {
+            manifest.files.addAll(files.parallelStream()
+                    .map(file -> {
+                        try {
+                            String name = appPath.relativize(file).toString().replace("\\", "/");
+                            return new LibraryFile(appPath, file, previous != null ? previous.getFile(name) : null);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    })
+                    .collect(Collectors.toList()));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+
         return manifest;
     }
 
+    /**
+     * Mark the jars whose filename matches one of the comma separated globs as lazy and record the
+     * packages they contain, so the launcher knows which jar to fetch for a class or resource.
+     */
+    public static void markLazy(FXManifest manifest, Path appPath, String globs) throws IOException {
+        List<PathMatcher> matchers = globMatchers(globs);
+
+        for (LibraryFile lib : manifest.files) {
+            if (!isJar(lib) || !matches(matchers, lib)) continue;
+
+            lib.lazy = true;
+            lib.packages = LibraryFile.scanPackages(appPath.resolve(lib.file));
+        }
+    }
+
+    /**
+     * Mark the files whose filename matches one of the comma separated globs as the startup set.
+     * The packages of all other jars are recorded, so classes from a jar that is still downloading
+     * when the application starts can be routed to it.
+     */
+    public static void markStartup(FXManifest manifest, Path appPath, String globs) throws IOException {
+        List<PathMatcher> matchers = globMatchers(globs);
+
+        for (LibraryFile lib : manifest.files) {
+            if (matches(matchers, lib)) {
+                lib.startup = true;
+            } else if (isJar(lib) && lib.packages == null) {
+                lib.packages = LibraryFile.scanPackages(appPath.resolve(lib.file));
+            }
+        }
+    }
+
+    private static List<PathMatcher> globMatchers(String globs) {
+        return Arrays.stream(globs.split(","))
+                .filter(s -> s != null && !s.isEmpty())
+                .map(glob -> FileSystems.getDefault().getPathMatcher("glob:" + glob.trim()))
+                .collect(Collectors.toList());
+    }
+
+    private static boolean matches(List<PathMatcher> matchers, LibraryFile lib) {
+        Path filename = Paths.get(lib.file).getFileName();
+        return matchers.stream().anyMatch(m -> m.matches(filename));
+    }
+
+    private static boolean isJar(LibraryFile lib) {
+        return lib.file.toLowerCase().endsWith(".jar");
+    }
+
+    /**
+     * Write a <code>&lt;file&gt;.patch</code> next to every file that changed since the previous release
+     * and record which version it applies to. Patches that would not save at least half of the download
+     * are dropped.
+     */
+    public static void createPatches(FXManifest manifest, Path appPath, Path previousRelease) throws IOException {
+        for (LibraryFile lib : manifest.files) {
+            Path current = appPath.resolve(lib.file);
+            Path previous = previousRelease.resolve(lib.file);
+            Path patch = appPath.resolve(lib.file + ".patch");
+            Files.deleteIfExists(patch);
+
+            if (!Files.exists(previous) || Files.size(previous) > Integer.MAX_VALUE || lib.size > Integer.MAX_VALUE) continue;
+            long previousChecksum = LibraryFile.checksum(previous);
+            if (previousChecksum == lib.checksum) continue;
+
+            try (OutputStream output = Files.newOutputStream(patch)) {
+                BinaryPatch.create(previous, current, output);
+            }
+
+            long patchSize = Files.size(patch);
+            if (patchSize * 2 > lib.size) {
+                Files.delete(patch);
+                continue;
+            }
+
+            lib.patchFrom = previousChecksum;
+            lib.patchSize = patchSize;
+        }
+    }
+
+    /**
+     * Write a gzip compressed <code>&lt;file&gt;.gz</code> next to every file and record its size in the manifest.
+     * Files that shrink by less than 10% are published uncompressed only.
+     */
+    public static void createCompressed(FXManifest manifest, Path appPath) throws IOException {
+        for (LibraryFile lib : manifest.files) {
+            Path file = appPath.resolve(lib.file);
+            Path compressed = appPath.resolve(lib.file + LibraryFile.GZIP_SUFFIX);
+
+            try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(compressed), 65536) {{
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }}) {
+                Files.copy(file, output);
+            }
+
+            long compressedSize = Files.size(compressed);
+            if (compressedSize * 10 > lib.size * 9) {
+                Files.delete(compressed);
+                lib.compression = null;
+                lib.compressedSize = null;
+                continue;
+            }
+
+            lib.compression = LibraryFile.GZIP;
+            lib.compressedSize = compressedSize;
+        }
+    }
+
+    /**
+     * Group eager, platform independent files smaller than the threshold into pack archives under
+     * <code>packs/</code>, so the launcher can fetch many small files with one request. Packs are named
+     * after their content and replace the packs of the previous run. The files are still published on
+     * their own, the launcher falls back to them.
+     * <p>
+     * A pack only holds files of one directory, so a changed file renames only packs of its own directory and
+     * leaves the files, and the sub-manifests, of all other directories alone.
+     */
+    public static void createPacks(FXManifest manifest, Path appPath, long threshold) throws IOException {
+        Path packDir = appPath.resolve(LibraryFile.PACK_DIR);
+        if (Files.isDirectory(packDir)) {
+            try (DirectoryStream<Path> previous = Files.newDirectoryStream(packDir, "*" + LibraryFile.PACK_SUFFIX)) {
+                for (Path pack : previous) Files.delete(pack);
+            }
+        }
+
+        Map<String, List<LibraryFile>> directories = manifest.files.stream()
+                .filter(lib -> lib.size < threshold && lib.os == null && !lib.isLazy())
+                .sorted(Comparator.comparing(lib -> lib.file))
+                .collect(Collectors.groupingBy(lib -> String.valueOf(ManifestPart.directoryOf(lib.file)), TreeMap::new, Collectors.toList()));
+
+        for (List<LibraryFile> candidates : directories.values()) {
+            List<LibraryFile> members = new ArrayList<>();
+            long size = 0;
+            for (LibraryFile lib : candidates) {
+                if (!members.isEmpty() && size + lib.size > MAX_PACK_SIZE) {
+                    writePack(appPath, members);
+                    members = new ArrayList<>();
+                    size = 0;
+                }
+                members.add(lib);
+                size += lib.size;
+            }
+            writePack(appPath, members);
+        }
+    }
+
+    private static final long MAX_PACK_SIZE = 4 * 1024 * 1024;
+
+    private static void writePack(Path appPath, List<LibraryFile> members) throws IOException {
+        if (members.size() < 2) return;
+
+        CRC32 name = new CRC32();
+        for (LibraryFile lib : members)
+            name.update(String.format("%s:%d\n", lib.file, lib.checksum).getBytes(StandardCharsets.UTF_8));
+        String pack = String.format("%s/%08x%s", LibraryFile.PACK_DIR, name.getValue(), LibraryFile.PACK_SUFFIX);
+
+        Files.createDirectories(appPath.resolve(LibraryFile.PACK_DIR));
+        try (ZipOutputStream output = new ZipOutputStream(new BufferedOutputStream(Files.newOutputStream(appPath.resolve(pack)), 65536))) {
+            for (LibraryFile lib : members) {
+                Path file = appPath.resolve(lib.file);
+                ZipEntry entry = new ZipEntry(lib.file);
+                // Jars are compressed already
+                if (isJar(lib)) {
+                    CRC32 crc = new CRC32();
+                    crc.update(Files.readAllBytes(file));
+                    entry.setMethod(ZipEntry.STORED);
+                    entry.setSize(lib.size);
+                    entry.setCompressedSize(lib.size);
+                    entry.setCrc(crc.getValue());
+                }
+                output.putNextEntry(entry);
+                Files.copy(file, output);
+                output.closeEntry();
+            }
+        }
+
+        for (LibraryFile lib : members) lib.pack = pack;
+    }
+
+    /**
+     * Move the files of every directory out of the manifest into a sub-manifest under
+     * <code>manifests/</code>, named after its SHA-256 hash, and list the sub-manifests as parts of the
+     * manifest together with the tree hash over them. Files at the top of the app stay in the manifest.
+     * Sub-manifests of the previous run are replaced.
+     * <p>
+     * The modification times of the files are left out of the sub-manifests, so touching a file without
+     * changing it doesn't change the hash of its part. They are kept in <code>manifests/modified.properties</code>
+     * instead, which the launcher never reads.
+     */
+    public static void splitManifest(FXManifest manifest, Path appPath) throws IOException {
+        Path partDir = appPath.resolve(ManifestPart.DIRECTORY);
+        if (Files.isDirectory(partDir)) {
+            try (DirectoryStream<Path> previous = Files.newDirectoryStream(partDir, "*.xml")) {
+                for (Path part : previous) Files.delete(part);
+            }
+        }
+
+        Map<String, List<LibraryFile>> directories = new TreeMap<>();
+        for (LibraryFile lib : manifest.files) {
+            String directory = ManifestPart.directoryOf(lib.file);
+            if (directory != null) directories.computeIfAbsent(directory, d -> new ArrayList<>()).add(lib);
+        }
+        if (directories.isEmpty()) return;
+
+        Files.createDirectories(partDir);
+        Properties modified = new Properties();
+        for (Map.Entry<String, List<LibraryFile>> directory : directories.entrySet()) {
+            FXManifest sub = new FXManifest();
+            sub.updateText = null;
+            sub.updateLabelStyle = null;
+            sub.progressBarStyle = null;
+            sub.wrapperStyle = null;
+            sub.acceptDowngrade = null;
+            sub.files.addAll(directory.getValue());
+            sub.files.sort(Comparator.comparing(lib -> lib.file));
+            for (LibraryFile lib : sub.files) {
+                if (lib.modified != null) modified.setProperty(lib.file, String.valueOf(lib.modified));
+                lib.modified = null;
+            }
+
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            JAXB.marshal(sub, content);
+            ManifestPart part = new ManifestPart(directory.getKey(), content.toByteArray());
+            Files.write(appPath.resolve(part.file), content.toByteArray());
+
+            manifest.parts.add(part);
+            manifest.files.removeAll(directory.getValue());
+        }
+        manifest.treeHash = ManifestPart.treeHash(manifest.parts);
+
+        try (OutputStream output = Files.newOutputStream(partDir.resolve(MODIFIED_CACHE))) {
+            modified.store(output, "Generated by CreateManifest, not needed by the launcher");
+        }
+    }
+
+    /**
+     * Put the modification times that {@link #splitManifest(FXManifest, Path)} kept out of the sub-manifests
+     * back on the files of the previous manifest.
+     */
+    private static void restoreModified(FXManifest previous, Path appPath) throws IOException {
+        Path cache = appPath.resolve(ManifestPart.DIRECTORY).resolve(MODIFIED_CACHE);
+        if (!Files.exists(cache)) return;
+
+        Properties modified = new Properties();
+        try (InputStream input = Files.newInputStream(cache)) {
+            modified.load(input);
+        }
+        for (LibraryFile lib : previous.files) {
+            String value = modified.getProperty(lib.file);
+            if (lib.modified != null || value == null) continue;
+            try {
+                lib.modified = Long.valueOf(value.trim());
+            } catch (NumberFormatException e) {
+                // The checksum of the file is computed again
+            }
+        }
+    }
+
     private static boolean shouldIncludeInManifest(Path file) {
         String filename = file.getFileName().toString();
         for (String ext : includeExtensions) {
@@ -0,0 +1,781 @@
+package fxlauncher;
+
+import com.ande.utils.CacheLock;
+
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.Adler32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+/**
+ * Downloads a set of {@link LibraryFile}s into the cache dir using a fixed pool of worker threads.
+ * <p>
+ * The number of simultaneous connections to a single host is capped separately from the pool size,
+ * so a large pool never hammers one origin. Bytes written by all workers are added to one shared
+ * counter and reported through a single {@link ProgressListener}.
+ * <p>
+ * Transfers go through a {@link PartialDownload}, so an interrupted download is resumed with a
+ * Range request on the next sync instead of starting from byte zero. The Adler32 checksum is
+ * computed in the same pass as the download, so finished files never have to be re-read to be verified.
+ * <p>
+ * When the manifest publishes a binary patch for a file and the cached copy is the version the patch was
+ * made for, only the patch is downloaded and applied. Any problem with the patch falls back to a full download.
+ * Files published with a compressed sibling are fetched compressed and inflated while streaming into the cache,
+ * with progress counted in compressed bytes.
+ * <p>
+ * All requests go through the {@link HttpTransport}, so connections to a host are kept alive and reused.
+ * <p>
+ * Each file is downloaded under a {@link CacheLock}, so several launcher processes can share one cache dir.
+ * <p>
+ * Files of at least <code>--chunk-threshold-mb</code> megabytes are split into <code>--chunks-per-file</code>
+ * byte ranges that are fetched at the same time into a preallocated part file, so one large file is not
+ * limited to a single TCP stream. The bytes written for every range are journaled, so an interrupted download
+ * only fetches what is missing of each range. The whole file is verified once all ranges have arrived. Every range
+ * counts against the connections per host, and a server that doesn't serve ranges gets a single stream.
+ * <p>
+ * Small files that the manifest groups into a pack are fetched together with one streaming request and
+ * unpacked into the cache dir. Members the pack doesn't deliver are downloaded on their own.
+ */
+class DownloadEngine implements AutoCloseable {
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    static final int DEFAULT_THREADS = 4;
+    static final int DEFAULT_CONNECTIONS_PER_HOST = 4;
+    static final int DEFAULT_CHUNK_THRESHOLD_MB = 64;
+    static final int DEFAULT_CHUNKS_PER_FILE = 4;
+
+    private final ExecutorService executor;
+    private final ExecutorService chunkExecutor;
+    private final int connectionsPerHost;
+    private final long chunkThreshold;
+    private final int chunksPerFile;
+    private final Map<String, Semaphore> hostPermits = new ConcurrentHashMap<>();
+    private final FileStateIndex index;
+
+    /**
+     * Listener for the combined progress of all workers. Called from the worker threads with the bytes
+     * transferred since the last call, which are negative when a failed attempt is taken back.
+     */
+    interface ProgressListener {
+        void progress(long read, long total);
+    }
+
+    DownloadEngine(int threads, int connectionsPerHost, FileStateIndex index) {
+        this(threads, connectionsPerHost, DEFAULT_CHUNK_THRESHOLD_MB, DEFAULT_CHUNKS_PER_FILE, index);
+    }
+
+    /**
+     * @param chunkThresholdMb Files of at least this many megabytes are downloaded in ranges, 0 disables it
+     * @param chunksPerFile The number of ranges a large file is split into
+     */
+    DownloadEngine(int threads, int connectionsPerHost, int chunkThresholdMb, int chunksPerFile, FileStateIndex index) {
+        this.index = index;
+        this.connectionsPerHost = Math.max(1, connectionsPerHost);
+        this.chunkThreshold = chunkThresholdMb * 1024L * 1024L;
+        this.chunksPerFile = Math.max(1, chunksPerFile);
+        this.executor = Executors.newFixedThreadPool(Math.max(1, threads), threadFactory("FXLauncher-Download-"));
+        this.chunkExecutor = Executors.newCachedThreadPool(threadFactory("FXLauncher-Download-Chunk-"));
+    }
+
+    private static ThreadFactory threadFactory(String prefix) {
+        return new ThreadFactory() {
+            private int count;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, prefix + (++count));
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    /**
+     * Create an engine configured from the --download-threads, --connections-per-host, --chunk-threshold-mb
+     * and --chunks-per-file named parameters, falling back to the defaults. Finished downloads are recorded
+     * in the given index.
+     */
+    static DownloadEngine fromParams(Map<String, String> namedParams, FileStateIndex index) {
+        return new DownloadEngine(
+                intParam(namedParams, "download-threads", DEFAULT_THREADS),
+                connectionsPerHost(namedParams),
+                intParam(namedParams, "chunk-threshold-mb", DEFAULT_CHUNK_THRESHOLD_MB),
+                intParam(namedParams, "chunks-per-file", DEFAULT_CHUNKS_PER_FILE),
+                index);
+    }
+
+    static int connectionsPerHost(Map<String, String> namedParams) {
+        return intParam(namedParams, "connections-per-host", DEFAULT_CONNECTIONS_PER_HOST);
+    }
+
+    static int intParam(Map<String, String> namedParams, String name, int defaultValue) {
+        if (namedParams == null || !namedParams.containsKey(name)) return defaultValue;
+        try {
+            return Integer.parseInt(namedParams.get(name).trim());
+        } catch (NumberFormatException e) {
+            log.warning(String.format("Ignoring invalid value for --%s: %s", name, namedParams.get(name)));
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Download all files from the mirrors and block until every transfer has finished.
+     * If one transfer fails the remaining ones are cancelled and the failure is rethrown.
+     */
+    void download(List<LibraryFile> files, Mirrors mirrors, Path cacheDir, ProgressListener listener) throws Exception {
+        Transfers transfers = submit(files, mirrors, cacheDir, listener);
+        try {
+            transfers.awaitAll();
+        } catch (Exception e) {
+            transfers.cancel();
+            throw e;
+        }
+    }
+
+    /**
+     * Start downloading all files from the mirrors without waiting for them. The workers
+     * pick up the files in the order of the list, so callers can put the most urgent files first.
+     */
+    Transfers submit(List<LibraryFile> files, Mirrors mirrors, Path cacheDir, ProgressListener listener) {
+        long totalBytes = files.stream().mapToLong(LibraryFile::transferSize).sum();
+        ByteCounter counter = read -> listener.progress(read, totalBytes);
+
+        // Files from a pack are fetched together, as long as more than one of them is needed
+        Map<String, List<LibraryFile>> packs = new LinkedHashMap<>();
+        for (LibraryFile lib : files)
+            if (lib.pack != null) packs.computeIfAbsent(lib.pack, p -> new ArrayList<>()).add(lib);
+        packs.values().removeIf(members -> members.size() < 2);
+
+        Transfers transfers = new Transfers();
+        for (LibraryFile lib : files) {
+            if (transfers.contains(lib)) continue;
+            List<LibraryFile> members = lib.pack != null ? packs.get(lib.pack) : null;
+            if (members != null) {
+                Future<?> future = executor.submit(() -> {
+                    transferPack(lib.pack, members, mirrors, cacheDir, counter);
+                    return null;
+                });
+                for (LibraryFile member : members) transfers.futures.put(member, future);
+            } else {
+                transfers.futures.put(lib, executor.submit(() -> {
+                    transfer(lib, mirrors, cacheDir, counter);
+                    return null;
+                }));
+            }
+        }
+        return transfers;
+    }
+
+    /**
+     * Handle on the downloads started by {@link #submit(List, Mirrors, Path, ProgressListener)}.
+     */
+    static class Transfers {
+        private final Map<LibraryFile, Future<?>> futures = new LinkedHashMap<>();
+
+        boolean contains(LibraryFile lib) {
+            return futures.containsKey(lib);
+        }
+
+        /**
+         * True if the file was not part of the transfers or has been downloaded successfully.
+         */
+        boolean isComplete(LibraryFile lib) {
+            Future<?> future = futures.get(lib);
+            if (future == null) return true;
+            if (!future.isDone() || future.isCancelled()) return false;
+            try {
+                future.get();
+                return true;
+            } catch (InterruptedException | ExecutionException e) {
+                return false;
+            }
+        }
+
+        /**
+         * Block until the given files have been downloaded, rethrowing the first failure.
+         */
+        void await(Collection<LibraryFile> files) throws Exception {
+            for (LibraryFile lib : files) {
+                Future<?> future = futures.get(lib);
+                if (future == null) continue;
+                try {
+                    future.get();
+                } catch (ExecutionException e) {
+                    Throwable cause = e.getCause();
+                    if (cause instanceof Exception) throw (Exception) cause;
+                    throw e;
+                }
+            }
+        }
+
+        void awaitAll() throws Exception {
+            await(futures.keySet());
+        }
+
+        void cancel() {
+            futures.values().forEach(f -> f.cancel(true));
+        }
+    }
+
+    private interface ByteCounter {
+        void add(long read);
+    }
+
+    /**
+     * Download one file while holding its cache lock, so processes sharing the cache dir never download
+     * the same file twice. A process that had to wait for the lock reuses the file the other one downloaded.
+     * A failed download fails over to the next mirror, resuming from what was already written.
+     */
+    @SuppressWarnings("try")
+    private void transfer(LibraryFile lib, Mirrors mirrors, Path cacheDir, ByteCounter counter) throws IOException, InterruptedException {
+        try (CacheLock lock = CacheLock.acquire(lockPath(cacheDir, lib.file))) {
+            if (!lib.needsUpdate(cacheDir, index)) {
+                log.fine(String.format("%s was downloaded by another process", lib.file));
+                counter.add(lib.transferSize());
+                return;
+            }
+            fetchFromMirrors(lib, mirrors, cacheDir, counter);
+        }
+    }
+
+    private void fetchFromMirrors(LibraryFile lib, Mirrors mirrors, Path cacheDir, ByteCounter counter) throws IOException, InterruptedException {
+        IOException failure = null;
+        for (URI baseUri : mirrors.forNextFile()) {
+            if (failure != null)
+                log.log(Level.INFO, String.format("Failing over %s to mirror %s", lib.file, baseUri), failure);
+
+            AtomicLong attempt = new AtomicLong();
+            try {
+                fetch(lib, baseUri, cacheDir, read -> {
+                    attempt.addAndGet(read);
+                    counter.add(read);
+                });
+                return;
+            } catch (IOException e) {
+                // The next mirror reports the bytes it resumes from again
+                counter.add(-attempt.get());
+                if (failure != null) e.addSuppressed(failure);
+                failure = e;
+                mirrors.failed(baseUri);
+            }
+        }
+        throw failure;
+    }
+
+    /**
+     * Download the members of a pack with one request while holding the cache lock of the pack. The lock of
+     * a member is only taken while its entry is written, so a pack never holds more than two locks at once.
+     * A pack that fails to download fails over to the next mirror like a single file. Members that are still
+     * missing after the pack was unpacked, e.g. because the pack or its lock could not be had, are downloaded
+     * on their own.
+     */
+    @SuppressWarnings("try")
+    private void transferPack(String pack, List<LibraryFile> members, Mirrors mirrors, Path cacheDir, ByteCounter counter) throws IOException, InterruptedException {
+        List<LibraryFile> pending = new ArrayList<>();
+        for (LibraryFile lib : members) {
+            if (lib.needsUpdate(cacheDir, index)) {
+                pending.add(lib);
+            } else {
+                log.fine(String.format("%s was downloaded by another process", lib.file));
+                counter.add(lib.transferSize());
+            }
+        }
+
+        if (pending.size() > 1) {
+            try (CacheLock lock = CacheLock.acquire(lockPath(cacheDir, pack))) {
+                IOException failure = null;
+                for (URI baseUri : mirrors.forNextFile()) {
+                    if (failure != null)
+                        log.log(Level.INFO, String.format("Failing over %s to mirror %s", pack, baseUri), failure);
+                    try {
+                        // Entries already unpacked stay in place and are not counted again
+                        unpack(baseUri.resolve(pack), pending, cacheDir, counter);
+                        failure = null;
+                        break;
+                    } catch (IOException e) {
+                        if (failure != null) e.addSuppressed(failure);
+                        failure = e;
+                        mirrors.failed(baseUri);
+                    }
+                }
+                if (failure != null) throw failure;
+            } catch (IOException e) {
+                log.log(Level.INFO, String.format("Unable to unpack %s, downloading its files one by one", pack), e);
+            }
+        }
+
+        for (LibraryFile lib : pending) transfer(lib, mirrors, cacheDir, counter);
+    }
+
+    /**
+     * Stream a pack and write the entries for the given files into the cache dir. Every entry is verified
+     * against the size and checksum of its own {@link LibraryFile} before it replaces the cached file, and
+     * counts as progress once it is in place and is removed from the files. Entries that are not needed or
+     * don't match are skipped, as are entries whose cache lock another process holds.
+     */
+    private void unpack(URI uri, List<LibraryFile> files, Path cacheDir, ByteCounter counter) throws IOException, InterruptedException {
+        Map<String, LibraryFile> needed = new HashMap<>();
+        for (LibraryFile lib : files) needed.put(lib.file, lib);
+
+        Semaphore permits = hostPermits.computeIfAbsent(hostKey(uri), h -> new Semaphore(connectionsPerHost));
+        permits.acquire();
+        try {
+            HttpURLConnection connection = HttpTransport.open(uri);
+            HttpTransport.checkResponse(connection);
+
+            byte[] buf = new byte[65536];
+            try (ZipInputStream input = new ZipInputStream(new BufferedInputStream(connection.getInputStream(), 65536))) {
+                ZipEntry entry;
+                while ((entry = input.getNextEntry()) != null) {
+                    LibraryFile lib = needed.remove(entry.getName());
+                    if (lib == null) continue;
+
+                    Path target = cacheDir.resolve(lib.file).toAbsolutePath();
+                    Files.createDirectories(target.getParent());
+                    Path unpacked = target.resolveSibling(target.getFileName() + ".unpack");
+                    try (CacheLock lock = CacheLock.tryAcquire(lockPath(cacheDir, lib.file))) {
+                        // The file is being downloaded on its own, it's checked again after the pack
+                        if (lock == null || !lib.needsUpdate(cacheDir, index)) continue;
+
+                        Adler32 checksum = new Adler32();
+                        long written = 0;
+                        try (OutputStream output = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(unpacked)), checksum)) {
+                            int read;
+                            while ((read = input.read(buf)) > -1) {
+                                if (Thread.interrupted()) throw new InterruptedException();
+                                output.write(buf, 0, read);
+                                written += read;
+                            }
+                        }
+
+                        if (written != lib.size || checksum.getValue() != lib.checksum) {
+                            log.info(String.format("%s in %s does not match manifest", lib.file, uri));
+                            continue;
+                        }
+                        PartialDownload.moveAtomically(unpacked, target);
+                        index.record(lib.file, target, checksum.getValue());
+                        counter.add(lib.transferSize());
+                        files.remove(lib);
+                    } finally {
+                        Files.deleteIfExists(unpacked);
+                    }
+                }
+            }
+        } finally {
+            permits.release();
+        }
+    }
+
+    static Path lockPath(Path cacheDir, String file) {
+        return cacheDir.resolve(FileStateIndex.DIRECTORY).resolve("locks").resolve(file + ".lock");
+    }
+
+    private void fetch(LibraryFile lib, URI baseUri, Path cacheDir, ByteCounter counter) throws IOException, InterruptedException {
+        Path target = cacheDir.resolve(lib.file).toAbsolutePath();
+        Files.createDirectories(target.getParent());
+
+        boolean compressed = lib.isCompressed();
+        URI uri = baseUri.resolve(compressed ? lib.file + LibraryFile.GZIP_SUFFIX : lib.file);
+        Semaphore permits = hostPermits.computeIfAbsent(hostKey(uri), h -> new Semaphore(connectionsPerHost));
+        permits.acquire();
+        try {
+            if (lib.patchFrom != null && patch(lib, baseUri, target, counter)) return;
+
+            PartialDownload partial = new PartialDownload(lib, target);
+            // A large file is fetched in ranges, unless an earlier single stream download can be resumed
+            if (!compressed && chunkThreshold > 0 && lib.size >= chunkThreshold && partial.load() == 0
+                    && fetchChunked(lib, uri, partial, permits, counter))
+                return;
+
+            // Offsets in the decompressed part file can't be mapped to the compressed stream, so compressed
+            // transfers always start over
+            if (compressed) partial.discard();
+            long resumeFrom = partial.load();
+
+            HttpURLConnection connection = HttpTransport.open(uri);
+            if (resumeFrom > 0) {
+                connection.setRequestProperty("Range", String.format("bytes=%d-", resumeFrom));
+                String validator = partial.etag != null ? partial.etag : partial.lastModified;
+                if (validator != null) connection.setRequestProperty("If-Range", validator);
+            }
+
+            if (resumeFrom > 0 && connection.getResponseCode() == 416) {
+                // The journaled range no longer fits the file on the server, start over
+                HttpTransport.release(connection);
+                partial.discard();
+                resumeFrom = partial.load();
+                connection = HttpTransport.open(uri);
+            }
+            HttpTransport.checkResponse(connection);
+
+            long written;
+            Adler32 checksum;
+
+            try (InputStream raw = connection.getInputStream();
+                 InputStream input = compressed ? new GZIPInputStream(new CountingInputStream(raw, counter), 65536) : raw;
+                 FileChannel channel = partial.open()) {
+
+                if (resumeFrom > 0 && resumesAt(connection, resumeFrom)) {
+                    log.fine(String.format("Resuming %s at byte %d", lib.file, resumeFrom));
+                    counter.add(resumeFrom);
+                } else {
+                    partial.reset(channel);
+                }
+                checksum = partial.checksum();
+                partial.etag = connection.getHeaderField("ETag");
+                partial.lastModified = connection.getHeaderField("Last-Modified");
+
+                byte[] buf = new byte[65536];
+                ByteBuffer buffer = ByteBuffer.wrap(buf);
+                long sinceCheckpoint = 0;
+
+                int read;
+                while ((read = input.read(buf)) > -1) {
+                    if (Thread.interrupted()) throw new InterruptedException();
+                    buffer.clear().limit(read);
+                    while (buffer.hasRemaining()) channel.write(buffer);
+                    checksum.update(buf, 0, read);
+                    if (compressed) continue;
+                    counter.add(read);
+
+                    sinceCheckpoint += read;
+                    if (sinceCheckpoint >= PartialDownload.CHECKPOINT_INTERVAL) {
+                        partial.checkpoint(channel);
+                        sinceCheckpoint = 0;
+                    }
+                }
+                written = channel.position();
+            }
+            partial.complete(written, checksum.getValue());
+            index.record(lib.file, target, checksum.getValue());
+        } finally {
+            permits.release();
+        }
+    }
+
+    /**
+     * Download a large file as several byte ranges at once into a preallocated part file and verify the
+     * whole file once all ranges have arrived. Each range takes another connection permit for the host,
+     * so only as many ranges are fetched at once as there are permits to spare.
+     * <p>
+     * The bytes written for every range are journaled, so after an interruption or a failed mirror only
+     * the missing part of every range is fetched again. The journal is kept when this throws.
+     *
+     * @return false if the file should be downloaded as a single stream instead, because no permits were
+     * free or the server doesn't serve ranges
+     */
+    private boolean fetchChunked(LibraryFile lib, URI uri, PartialDownload partial, Semaphore permits, ByteCounter counter) throws IOException, InterruptedException {
+        boolean resuming = partial.loadRanges();
+        int extra = 0;
+        while (extra < chunksPerFile - 1 && permits.tryAcquire()) extra++;
+        if (extra == 0 && !resuming) return false;
+
+        AtomicLong counted = new AtomicLong();
+        ByteCounter chunkCounter = read -> {
+            counted.addAndGet(read);
+            counter.add(read);
+        };
+
+        try {
+            if (!resuming) {
+                partial.discard();
+                partial.startRanges((lib.size + chunksPerFile - 1) / chunksPerFile);
+            }
+
+            Queue<Integer> remaining = new ConcurrentLinkedQueue<>();
+            for (int range = 0; range < partial.rangeDone.length; range++) {
+                if (partial.rangeDone[range] < partial.rangeLength(range)) remaining.add(range);
+                chunkCounter.add(partial.rangeDone[range]);
+            }
+            if (resuming)
+                log.fine(String.format("Resuming %s with %d of %d ranges missing", lib.file, remaining.size(), partial.rangeDone.length));
+
+            try (RandomAccessFile file = new RandomAccessFile(partial.part.toFile(), "rw")) {
+                file.setLength(lib.size);
+                RangeDownload download = new RangeDownload(uri, partial, file.getChannel(), chunkCounter, remaining);
+                try {
+                    Integer first = remaining.poll();
+                    if (first != null) {
+                        // Ask for the first range before starting the others, so a server that ignores ranges
+                        // only sends the whole file once
+                        HttpURLConnection connection = download.open(first);
+                        if (partial.etag == null && partial.lastModified == null) {
+                            partial.etag = connection.getHeaderField("ETag");
+                            partial.lastModified = connection.getHeaderField("Last-Modified");
+                        }
+
+                        for (int i = 0; i < Math.min(extra, remaining.size()); i++) download.submit(chunkExecutor);
+                        log.fine(String.format("Downloading %s in %d ranges", lib.file, partial.rangeDone.length));
+
+                        download.read(connection, first);
+                        download.work();
+                        download.await();
+                    }
+                } finally {
+                    // Nothing may write to the part file or its journal once this returns or falls back
+                    download.stop();
+                }
+                file.getChannel().force(false);
+            }
+
+            long checksum = LibraryFile.checksum(partial.part);
+            partial.complete(lib.size, checksum);
+            index.record(lib.file, partial.target, checksum);
+            return true;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof RangesNotServedException)
+                return fallBack(lib, partial, counter, counted, (RangesNotServedException) e.getCause());
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        } catch (RangesNotServedException e) {
+            return fallBack(lib, partial, counter, counted, e);
+        } finally {
+            permits.release(extra);
+        }
+    }
+
+    private static boolean fallBack(LibraryFile lib, PartialDownload partial, ByteCounter counter, AtomicLong counted, RangesNotServedException e) throws IOException {
+        log.log(Level.INFO, String.format("Unable to download %s in ranges, falling back to a single stream", lib.file), e);
+        counter.add(-counted.get());
+        partial.discard();
+        return false;
+    }
+
+    /**
+     * Thrown when a server answers a range request with anything but the requested range.
+     */
+    private static class RangesNotServedException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        RangesNotServedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * The ranges of one file that are fetched by the calling thread and the range workers together.
+     * <p>
+     * The workers are never cancelled through their futures, because a cancelled task may still be writing.
+     * {@link #stop()} instead makes them stop after their current buffer, closes the connections they read
+     * from and waits until every one of them has returned.
+     */
+    private static class RangeDownload {
+        private final URI uri;
+        private final PartialDownload partial;
+        private final FileChannel channel;
+        private final ByteCounter counter;
+        private final Queue<Integer> remaining;
+        private final List<Future<?>> futures = new ArrayList<>();
+        private final Set<HttpURLConnection> connections = ConcurrentHashMap.newKeySet();
+        private final Phaser running = new Phaser(1);
+        private volatile boolean stopped;
+
+        RangeDownload(URI uri, PartialDownload partial, FileChannel channel, ByteCounter counter, Queue<Integer> remaining) {
+            this.uri = uri;
+            this.partial = partial;
+            this.channel = channel;
+            this.counter = counter;
+            this.remaining = remaining;
+        }
+
+        /**
+         * Start a worker that fetches remaining ranges until there are none left.
+         */
+        void submit(ExecutorService executor) {
+            running.register();
+            try {
+                futures.add(executor.submit(() -> {
+                    try {
+                        work();
+                        return null;
+                    } finally {
+                        running.arriveAndDeregister();
+                    }
+                }));
+            } catch (RejectedExecutionException e) {
+                running.arriveAndDeregister();
+                throw e;
+            }
+        }
+
+        void work() throws IOException {
+            Integer range;
+            while (!stopped && (range = remaining.poll()) != null) read(open(range), range);
+        }
+
+        void await() throws ExecutionException, InterruptedException {
+            for (Future<?> future : futures) future.get();
+        }
+
+        void stop() {
+            stopped = true;
+            for (HttpURLConnection connection : connections) connection.disconnect();
+            running.arriveAndAwaitAdvance();
+        }
+
+        /**
+         * Request the missing bytes of a range. The journaled validator makes the server send the whole file
+         * instead if it has changed since the first range was fetched.
+         */
+        HttpURLConnection open(int range) throws IOException {
+            long start = partial.rangeStart(range) + partial.rangeDone[range];
+            long end = partial.rangeStart(range) + partial.rangeLength(range) - 1;
+            HttpURLConnection connection = HttpTransport.open(uri);
+            connection.setRequestProperty("Range", String.format("bytes=%d-%d", start, end));
+            String validator = partial.etag != null ? partial.etag : partial.lastModified;
+            if (validator != null) connection.setRequestProperty("If-Range", validator);
+            connections.add(connection);
+            try {
+                if (!resumesAt(connection, start)) {
+                    HttpTransport.release(connection);
+                    throw new RangesNotServedException(String.format("Server does not serve byte ranges of %s", uri));
+                }
+            } catch (IOException | RuntimeException e) {
+                connections.remove(connection);
+                throw e;
+            }
+            return connection;
+        }
+
+        /**
+         * Write the requested range at the same position in the file, journaling the bytes written.
+         */
+        void read(HttpURLConnection connection, int range) throws IOException {
+            long start = partial.rangeStart(range);
+            long end = start + partial.rangeLength(range) - 1;
+            try (InputStream input = connection.getInputStream()) {
+                byte[] buf = new byte[65536];
+                long position = start + partial.rangeDone[range];
+                long sinceCheckpoint = 0;
+
+                int read;
+                while (position <= end && (read = input.read(buf, 0, (int) Math.min(buf.length, end - position + 1))) > -1) {
+                    if (stopped || Thread.interrupted()) throw new InterruptedIOException();
+                    ByteBuffer buffer = ByteBuffer.wrap(buf, 0, read);
+                    while (buffer.hasRemaining()) position += channel.write(buffer, position);
+                    counter.add(read);
+
+                    sinceCheckpoint += read;
+                    if (sinceCheckpoint >= PartialDownload.CHECKPOINT_INTERVAL) {
+                        partial.checkpointRange(channel, range, position - start);
+                        sinceCheckpoint = 0;
+                    }
+                }
+                partial.checkpointRange(channel, range, position - start);
+                if (position != end + 1)
+                    throw new IOException(String.format("Range %d-%d of %s ended at byte %d", start, end, connection.getURL(), position));
+            } finally {
+                connections.remove(connection);
+            }
+        }
+    }
+
+    /**
+     * Try to update the cached file by downloading and applying the binary patch published for it.
+     * Returns false, leaving the cached file untouched, if the cached file is not the version the patch
+     * was made for or if the patch is missing or does not produce the expected file.
+     */
+    private boolean patch(LibraryFile lib, URI baseUri, Path target, ByteCounter counter) throws InterruptedException {
+        Path patched = target.resolveSibling(target.getFileName() + ".patched");
+        long[] patchBytes = {0};
+        try {
+            if (!Files.exists(target)) return false;
+            BasicFileAttributes attrs = Files.readAttributes(target, BasicFileAttributes.class);
+            Long current = index.trustedChecksum(lib.file, attrs);
+            if (current == null) current = LibraryFile.checksum(target);
+            if (current.longValue() != lib.patchFrom) return false;
+
+            HttpURLConnection connection = HttpTransport.open(baseUri.resolve(lib.file + ".patch"));
+            HttpTransport.checkResponse(connection);
+            long written;
+            Adler32 checksum = new Adler32();
+            try (InputStream input = new CountingInputStream(connection.getInputStream(), read -> {
+                     patchBytes[0] += read;
+                     counter.add(read);
+                 });
+                 OutputStream output = new CheckedOutputStream(new BufferedOutputStream(Files.newOutputStream(patched)), checksum)) {
+                written = BinaryPatch.apply(target, input, output);
+            }
+            if (Thread.interrupted()) throw new InterruptedException();
+
+            if (written != lib.size || checksum.getValue() != lib.checksum)
+                throw new IOException(String.format("Patched %s does not match manifest", lib.file));
+
+            PartialDownload.moveAtomically(patched, target);
+            index.record(lib.file, target, checksum.getValue());
+            // Report the bytes saved by the patch as done, so the overall progress still adds up
+            counter.add(lib.transferSize() - patchBytes[0]);
+            return true;
+        } catch (IOException e) {
+            log.log(Level.INFO, String.format("Unable to patch %s, falling back to full download", lib.file), e);
+            counter.add(-patchBytes[0]);
+            try {
+                Files.deleteIfExists(patched);
+            } catch (IOException ignored) {
+            }
+            return false;
+        }
+    }
+
+    /**
+     * Reports every byte read from the wrapped stream to a counter.
+     */
+    private static class CountingInputStream extends FilterInputStream {
+        private final ByteCounter counter;
+
+        CountingInputStream(InputStream in, ByteCounter counter) {
+            super(in);
+            this.counter = counter;
+        }
+
+        public int read() throws IOException {
+            int b = super.read();
+            if (b > -1) counter.add(1);
+            return b;
+        }
+
+        public int read(byte[] b, int off, int len) throws IOException {
+            int read = super.read(b, off, len);
+            if (read > 0) counter.add(read);
+            return read;
+        }
+    }
+
+    /**
+     * True if the server answered a Range request with the partial content we asked for.
+     */
+    private static boolean resumesAt(HttpURLConnection connection, long offset) throws IOException {
+        if (connection.getResponseCode() != HttpURLConnection.HTTP_PARTIAL) return false;
+        String range = connection.getHeaderField("Content-Range");
+        return range != null && range.trim().startsWith(String.format("bytes %d-", offset));
+    }
+
+    private static String hostKey(URI uri) {
+        return String.format("%s://%s:%d", uri.getScheme(), uri.getHost(), uri.getPort());
+    }
+
+    public void close() {
+        executor.shutdownNow();
+        chunkExecutor.shutdownNow();
+    }
+}
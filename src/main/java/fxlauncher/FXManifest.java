@@ -4,28 +4,50 @@ import javax.xml.bind.JAXB;
 import javax.xml.bind.annotation.XmlAttribute;
 import javax.xml.bind.annotation.XmlElement;
 import javax.xml.bind.annotation.XmlRootElement;
+import javax.xml.bind.annotation.XmlTransient;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.logging.Logger;
 
 @SuppressWarnings("unchecked")
 @XmlRootElement(name = "Application")
 public class FXManifest {
+	private static final Logger log = Logger.getLogger("Launcher");
+
 	@XmlAttribute
 	public Long ts;
 	@XmlAttribute
 	public URI uri;
 	@XmlAttribute(name = "launch")
 	public String launchClass;
+	/** Root hash over the {@link #parts}, see {@link ManifestPart#treeHash(List)} */
+	@XmlAttribute(name = "tree")
+	public String treeHash;
 	@XmlElement(name = "lib")
 	public List<LibraryFile> files = new ArrayList<>();
+	/** Base URIs that serve the same files as {@link #uri}, see {@link Mirrors} */
+	@XmlElement(name = "mirror")
+	public List<URI> mirrors = new ArrayList<>();
+	/** Sub-manifests that list the files of one directory each, see {@link #resolveParts(URI, FXManifest)} */
+	@XmlElement(name = "part")
+	public List<ManifestPart> parts = new ArrayList<>();
 	@XmlElement
 	public String updateText = "Updating...";
 	@XmlElement
@@ -39,10 +61,28 @@ public class FXManifest {
 	@XmlElement
 	public String cacheDir;
 	@XmlElement
+	public String sharedStore;
+	@XmlElement
 	public Boolean acceptDowngrade = false;
 	@XmlElement
 	public String preloadNativeLibraries;
 
+	/** HTTP validators of the response this manifest was loaded from, see {@link #loadIfModified(URI, Path)} */
+	@XmlTransient
+	String etag;
+	@XmlTransient
+	String lastModified;
+
+	/**
+	 * The files by path and the content digest, computed on first use. The manifest must not change after that.
+	 * Both are volatile, so a manifest can be read from several threads, e.g. the parallel hashing in
+	 * {@link CreateManifest#create(URI, String, Path, FXManifest)}.
+	 */
+	@XmlTransient
+	private volatile Map<String, LibraryFile> fileIndex;
+	@XmlTransient
+	private volatile byte[] digest;
+
 	public List<String> getPreloadNativeLibraryList() {
 		if (preloadNativeLibraries == null || preloadNativeLibraries.isEmpty()) return Collections.emptyList();
 		return Arrays.asList(preloadNativeLibraries.split(".*,-*"));
@@ -53,6 +93,10 @@ public class FXManifest {
 	}
 
 	public URI getFXAppURI() {
+		return getFXAppURI(uri);
+	}
+
+	static URI getFXAppURI(URI uri) {
 		if (uri.getPath().endsWith("/"))
 			return uri.resolve("app.xml");
 
@@ -70,6 +114,26 @@ public class FXManifest {
             
 		if (cacheDir == null || cacheDir.isEmpty()) return Paths.get(".");
 
+		return resolveDirectory(cacheDir);
+	}
+
+	/**
+	 * Resolve the content-addressed store shared by all manifests on this machine, configured with
+	 * the shared-store parameter or manifest element. Supports the same USERLIB prefix as the cache dir.
+	 *
+	 * @return The store directory, or null if no shared store is configured
+	 */
+	public Path resolveSharedStore(Map<String, String> namedParams) {
+		if (namedParams == null) namedParams = Collections.emptyMap();
+
+		String sharedStore = namedParams.containsKey("shared-store") ? namedParams.get("shared-store") : this.sharedStore;
+
+		if (sharedStore == null || sharedStore.isEmpty()) return null;
+
+		return resolveDirectory(sharedStore);
+	}
+
+	private static Path resolveDirectory(String cacheDir) {
 		Path path;
 
 		if (cacheDir.contains("USERLIB")) {
@@ -109,41 +173,145 @@ public class FXManifest {
 		return path;
 	}
 
+	/**
+	 * Find the entry for a file by its path.
+	 *
+	 * @return The entry, or null if the manifest doesn't contain the file
+	 */
+	public LibraryFile getFile(String path) {
+		Map<String, LibraryFile> index = fileIndex;
+		if (index == null) {
+			index = new HashMap<>(files.size() * 2);
+			for (LibraryFile lib : files) index.putIfAbsent(lib.file, lib);
+			fileIndex = index;
+		}
+		return index.get(path);
+	}
+
+	/**
+	 * A SHA-256 digest over everything that takes part in {@link #equals(Object)}, so comparing two
+	 * large manifests doesn't walk all their files every time.
+	 */
+	byte[] digest() {
+		if (digest == null) {
+			MessageDigest md;
+			try {
+				md = MessageDigest.getInstance("SHA-256");
+			} catch (NoSuchAlgorithmException e) {
+				throw new RuntimeException(e);
+			}
+			update(md, ts);
+			update(md, uri);
+			update(md, launchClass);
+			update(md, treeHash);
+			update(md, mirrors);
+			update(md, files != null ? files.size() : null);
+			if (files != null) {
+				for (LibraryFile lib : files) {
+					update(md, lib.file);
+					update(md, lib.checksum);
+					update(md, lib.size);
+				}
+			}
+			update(md, updateText);
+			update(md, updateLabelStyle);
+			update(md, progressBarStyle);
+			update(md, wrapperStyle);
+			update(md, parameters);
+			update(md, cacheDir);
+			update(md, sharedStore);
+			update(md, acceptDowngrade);
+			digest = md.digest();
+		}
+		return digest;
+	}
+
+	private static void update(MessageDigest md, Object value) {
+		if (value == null) {
+			md.update((byte) 0);
+			return;
+		}
+		byte[] bytes = value.toString().getBytes(StandardCharsets.UTF_8);
+		md.update((byte) 1);
+		md.update(ByteBuffer.allocate(4).putInt(bytes.length).array());
+		md.update(bytes);
+	}
+
 	@Override
 	public boolean equals(Object o) {
 		if (this == o) return true;
 		if (o == null || getClass() != o.getClass()) return false;
 
 		FXManifest that = (FXManifest) o;
-
-		if (ts != null ? !ts.equals(that.ts) : that.ts != null) return false;
-		if (uri != null ? !uri.equals(that.uri) : that.uri != null) return false;
-		if (launchClass != null ? !launchClass.equals(that.launchClass) : that.launchClass != null) return false;
-		if (files != null ? !files.equals(that.files) : that.files != null) return false;
-		if (updateText != null ? !updateText.equals(that.updateText) : that.updateText != null) return false;
-		if (updateLabelStyle != null ? !updateLabelStyle.equals(that.updateLabelStyle) : that.updateLabelStyle != null) return false;
-		if (progressBarStyle != null ? !progressBarStyle.equals(that.progressBarStyle) : that.progressBarStyle != null) return false;
-		if (wrapperStyle != null ? !wrapperStyle.equals(that.wrapperStyle) : that.wrapperStyle != null) return false;
-		if (parameters != null ? !parameters.equals(that.parameters) : that.parameters != null) return false;
-		if (cacheDir != null ? !cacheDir.equals(that.cacheDir) : that.cacheDir != null) return false;
-		return acceptDowngrade != null ? acceptDowngrade.equals(that.acceptDowngrade) : that.acceptDowngrade == null;
-
+		return Arrays.equals(digest(), that.digest());
 	}
 
 	@Override
 	public int hashCode() {
-		int result = ts != null ? ts.hashCode() : 0;
-		result = 31 * result + (uri != null ? uri.hashCode() : 0);
-		result = 31 * result + (launchClass != null ? launchClass.hashCode() : 0);
-		result = 31 * result + (files != null ? files.hashCode() : 0);
-		result = 31 * result + (updateText != null ? updateText.hashCode() : 0);
-		result = 31 * result + (updateLabelStyle != null ? updateLabelStyle.hashCode() : 0);
-		result = 31 * result + (progressBarStyle != null ? progressBarStyle.hashCode() : 0);
-		result = 31 * result + (wrapperStyle != null ? wrapperStyle.hashCode() : 0);
-		result = 31 * result + (parameters != null ? parameters.hashCode() : 0);
-		result = 31 * result + (cacheDir != null ? cacheDir.hashCode() : 0);
-		result = 31 * result + (acceptDowngrade != null ? acceptDowngrade.hashCode() : 0);
-		return result;
+		return ByteBuffer.wrap(digest()).getInt();
+	}
+
+	/**
+	 * Add the files listed in the sub-manifests to {@link #files}. If the tree hash equals the one of the
+	 * cached manifest, all files are taken from the cached manifest. Otherwise the files of every part whose
+	 * hash is unchanged are taken from the cached manifest, and only the other sub-manifests are downloaded.
+	 *
+	 * @param manifestUri The location of this manifest, sub-manifests are resolved against it
+	 * @param cached The cached manifest, or null to download every sub-manifest
+	 */
+	void resolveParts(URI manifestUri, FXManifest cached) throws IOException {
+		if (parts.isEmpty()) return;
+
+		boolean sameTree = cached != null && treeHash != null && treeHash.equals(cached.treeHash);
+		Map<String, String> cachedHashes = new HashMap<>();
+		if (cached != null)
+			for (ManifestPart part : cached.parts) cachedHashes.put(part.name, part.hash);
+
+		List<ManifestPart> changed = new ArrayList<>();
+		for (ManifestPart part : parts)
+			if (!sameTree && !part.hash.equals(cachedHashes.get(part.name))) changed.add(part);
+
+		Map<ManifestPart, List<LibraryFile>> loaded = loadParts(changed, manifestUri);
+		for (ManifestPart part : parts) {
+			List<LibraryFile> partFiles = loaded.get(part);
+			if (partFiles == null) {
+				partFiles = new ArrayList<>();
+				for (LibraryFile lib : cached.files)
+					if (part.contains(lib)) partFiles.add(lib);
+			}
+			files.addAll(partFiles);
+		}
+		fileIndex = null;
+		digest = null;
+
+		log.info(String.format("Loaded %d of %d sub-manifests from %s", changed.size(), parts.size(), manifestUri));
+	}
+
+	private static Map<ManifestPart, List<LibraryFile>> loadParts(List<ManifestPart> parts, URI manifestUri) throws IOException {
+		Map<ManifestPart, List<LibraryFile>> loaded = new HashMap<>();
+		if (parts.isEmpty()) return loaded;
+
+		ExecutorService executor = Executors.newFixedThreadPool(Math.min(parts.size(), DownloadEngine.DEFAULT_THREADS), r -> {
+			Thread thread = new Thread(r, "FXLauncher-Manifest-Part");
+			thread.setDaemon(true);
+			return thread;
+		});
+		try {
+			Map<ManifestPart, Future<List<LibraryFile>>> futures = new LinkedHashMap<>();
+			for (ManifestPart part : parts)
+				futures.put(part, executor.submit(() -> part.load(manifestUri)));
+			for (Map.Entry<ManifestPart, Future<List<LibraryFile>>> future : futures.entrySet())
+				loaded.put(future.getKey(), future.getValue().get());
+			return loaded;
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+			throw new IOException(e.getCause());
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while loading sub-manifests");
+		} finally {
+			executor.shutdownNow();
+		}
 	}
 
 	public boolean isNewerThan(FXManifest other) {
@@ -151,15 +319,123 @@ public class FXManifest {
 	}
 
 	static FXManifest load(URI uri) throws IOException {
-		HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
-		if (uri.getUserInfo() != null) {
-			byte[] payload = uri.getUserInfo().getBytes(StandardCharsets.UTF_8);
-			String encoded = Base64.getEncoder().encodeToString(payload);
-			connection.setRequestProperty("Authorization", String.format("Basic %s", encoded));
+		return loadIfModified(uri, null);
+	}
+
+	/**
+	 * Load the remote manifest from the fastest mirror with {@link #loadIfModified(URI, Path)},
+	 * failing over to the other mirrors in order of latency.
+	 */
+	static FXManifest loadIfModified(Mirrors mirrors, Path manifestPath) throws IOException {
+		IOException failure = null;
+		for (URI mirror : mirrors.ranked()) {
+			try {
+				return loadIfModified(getFXAppURI(mirror), manifestPath);
+			} catch (IOException e) {
+				if (failure != null) e.addSuppressed(failure);
+				failure = e;
+				mirrors.failed(mirror);
+			}
 		}
+		throw failure;
+	}
+
+	/**
+	 * Load the remote manifest with a conditional request, using the ETag and Last-Modified
+	 * validators stored next to the cached manifest by {@link #saveValidators(Path)}.
+	 * Validators are only sent when the cached manifest exists.
+	 *
+	 * @param uri The location of the remote manifest
+	 * @param manifestPath The cached manifest, or null to always load the remote manifest
+	 * @return The remote manifest, or null if the server answered 304 Not Modified
+	 */
+	static FXManifest loadIfModified(URI uri, Path manifestPath) throws IOException {
+		HttpURLConnection connection = HttpTransport.open(uri);
+
+		if (manifestPath != null && Files.exists(manifestPath)) {
+			Properties validators = loadValidators(manifestPath);
+			if (validators.containsKey("etag"))
+				connection.setRequestProperty("If-None-Match", validators.getProperty("etag"));
+			if (validators.containsKey("lastModified"))
+				connection.setRequestProperty("If-Modified-Since", validators.getProperty("lastModified"));
+		}
+
+		if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+			HttpTransport.release(connection);
+			return null;
+		}
+		HttpTransport.checkResponse(connection);
+
+		FXManifest manifest;
 		try (InputStream input = connection.getInputStream()) {
-			return JAXB.unmarshal(input, FXManifest.class);
+			manifest = ManifestReader.read(input);
+			manifest.etag = connection.getHeaderField("ETag");
+			manifest.lastModified = connection.getHeaderField("Last-Modified");
 		}
+
+		if (!manifest.parts.isEmpty()) {
+			FXManifest cached = manifestPath != null && Files.exists(manifestPath) ? ManifestSnapshot.load(manifestPath) : null;
+			manifest.resolveParts(uri, cached);
+		}
+		return manifest;
+	}
+
+	/**
+	 * Write the manifest to the given path through a temporary file, so other launcher processes
+	 * sharing the cache dir never read a partially written manifest. The binary snapshot of the manifest is
+	 * refreshed as well, see {@link ManifestSnapshot}.
+	 */
+	void save(Path manifestPath) throws IOException {
+		Path temp = Files.createTempFile(manifestPath.toAbsolutePath().getParent(), manifestPath.getFileName().toString(), ".tmp");
+		try {
+			JAXB.marshal(this, temp.toFile());
+			PartialDownload.moveAtomically(temp, manifestPath);
+			ManifestSnapshot.write(this, manifestPath);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Store the HTTP validators this manifest was loaded with next to the cached manifest,
+	 * so the next {@link #loadIfModified(URI, Path)} can be answered with 304 Not Modified.
+	 * Call this only once the cached manifest reflects the remote one.
+	 */
+	void saveValidators(Path manifestPath) throws IOException {
+		Path validatorsPath = getValidatorsPath(manifestPath);
+		if (etag == null && lastModified == null) {
+			Files.deleteIfExists(validatorsPath);
+			return;
+		}
+
+		Properties validators = new Properties();
+		if (etag != null) validators.setProperty("etag", etag);
+		if (lastModified != null) validators.setProperty("lastModified", lastModified);
+		// Other processes sharing the cache dir read the validators, so they're moved into place complete
+		Path temp = Files.createTempFile(validatorsPath.toAbsolutePath().getParent(), validatorsPath.getFileName().toString(), ".tmp");
+		try {
+			try (OutputStream output = Files.newOutputStream(temp)) {
+				validators.store(output, getFXAppURI().toString());
+			}
+			PartialDownload.moveAtomically(temp, validatorsPath);
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	private static Properties loadValidators(Path manifestPath) throws IOException {
+		Properties validators = new Properties();
+		Path validatorsPath = getValidatorsPath(manifestPath);
+		if (Files.exists(validatorsPath)) {
+			try (InputStream input = Files.newInputStream(validatorsPath)) {
+				validators.load(input);
+			}
+		}
+		return validators;
+	}
+
+	static Path getValidatorsPath(Path manifestPath) {
+		return manifestPath.resolveSibling(manifestPath.getFileName() + ".validators");
 	}
         
         public boolean isDirEmpty(final Path directory) throws IOException{
@@ -0,0 +1,175 @@
+package fxlauncher;
+
+import java.io.IOException;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A class loader over the libraries already in the cache dir that fetches the missing ones on first use.
+ * <p>
+ * Missing libraries are lazy libraries, or libraries that are still being downloaded in the background
+ * while the application starts. They are routed by the package index from the manifest. When a class or
+ * resource can't be found in the libraries already on the class path, the missing libraries that contain
+ * its package are fetched one at a time, appended to the class path and the lookup is retried after each.
+ * Listing all resources of a name fetches every library that contains the package. Service provider files
+ * are indexed by their full name, so {@link java.util.ServiceLoader} only fetches the libraries that provide
+ * the service. Missing libraries without a package index are all fetched on the first failed lookup of a
+ * package that neither an indexed library nor a parent class loader knows. A library that can't be fetched
+ * stays missing and is tried again on a later lookup.
+ */
+class FetchingClassLoader extends IndexedClassLoader {
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    static {
+        ClassLoader.registerAsParallelCapable();
+    }
+
+    /**
+     * Makes a library available in the cache dir, blocking until it is there.
+     */
+    interface Fetcher {
+        void fetch(LibraryFile lib) throws Exception;
+    }
+
+    private final Path cacheDir;
+    private final Fetcher fetcher;
+    private final Map<String, List<LibraryFile>> owners = new HashMap<>();
+    private final Set<LibraryFile> pending = ConcurrentHashMap.newKeySet();
+    private final List<LibraryFile> unindexed = new ArrayList<>();
+
+    FetchingClassLoader(Map<URL, Set<String>> directories, Collection<LibraryFile> missing, Path cacheDir, Fetcher fetcher) {
+        super(directories);
+        this.cacheDir = cacheDir;
+        this.fetcher = fetcher;
+        for (LibraryFile lib : missing) {
+            if (lib.getPackages().isEmpty()) unindexed.add(lib);
+            // A split package, or the root package, can be contained in several libraries
+            for (String pkg : lib.getPackages())
+                owners.computeIfAbsent(pkg, p -> new ArrayList<>()).add(lib);
+            pending.add(lib);
+        }
+    }
+
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        try {
+            return super.findClass(name);
+        } catch (ClassNotFoundException e) {
+            int dot = name.lastIndexOf('.');
+            String pkg = dot > 0 ? name.substring(0, dot) : "";
+            Set<LibraryFile> failed = new HashSet<>();
+            while (fetchNext(pkg, failed)) {
+                try {
+                    return super.findClass(name);
+                } catch (ClassNotFoundException ignored) {
+                }
+            }
+            throw e;
+        }
+    }
+
+    public URL findResource(String name) {
+        URL url = super.findResource(name);
+        String key = resourceKey(name);
+        Set<LibraryFile> failed = new HashSet<>();
+        while (url == null && fetchNext(key, failed))
+            url = super.findResource(name);
+        return url;
+    }
+
+    public Enumeration<URL> findResources(String name) throws IOException {
+        String key = resourceKey(name);
+        Set<LibraryFile> failed = new HashSet<>();
+        while (fetchNext(key, failed)) ;
+        return super.findResources(name);
+    }
+
+    /**
+     * The key a resource is indexed under, see {@link LibraryFile#scanPackages(Path)}.
+     */
+    private static String resourceKey(String name) {
+        if (name.startsWith(LibraryFile.SERVICES)) return name;
+        int slash = name.lastIndexOf('/');
+        return slash > 0 ? name.substring(0, slash).replace('/', '.') : "";
+    }
+
+    /**
+     * Fetch the next missing library that contains the package and add it to the class path. A package that
+     * no library is known to contain may be in one of the libraries without a package index, so those are
+     * fetched instead.
+     *
+     * @param failed The libraries that failed to be fetched during this lookup, they are not tried again
+     * @return true if a library was added, false if there is nothing left to fetch for the package
+     */
+    private boolean fetchNext(String pkg, Set<LibraryFile> failed) {
+        List<LibraryFile> libs = owners.get(pkg);
+        if (libs == null) return !isKnown(pkg) && fetchUnindexed(failed);
+
+        for (LibraryFile lib : libs) {
+            if (!pending.contains(lib) || failed.contains(lib)) continue;
+            if (fetch(lib, pkg)) return true;
+            failed.add(lib);
+        }
+        return false;
+    }
+
+    /**
+     * True if the package is on the class path already or belongs to a parent class loader, e.g. the JDK.
+     * Service files are only known through the package index of the missing libraries.
+     */
+    @SuppressWarnings("deprecation")
+    private boolean isKnown(String pkg) {
+        if (pkg.startsWith(LibraryFile.SERVICES)) return false;
+        return isIndexed(pkg.replace('.', '/')) || getPackage(pkg) != null;
+    }
+
+    /**
+     * @return false if the library could not be fetched, it stays missing
+     */
+    private boolean fetch(LibraryFile lib, String pkg) {
+        synchronized (lib) {
+            // Another thread may have fetched the library while we waited
+            if (!pending.contains(lib)) return true;
+            try {
+                log.info(String.format("Fetching library %s for package %s", lib.file, pkg));
+                fetcher.fetch(lib);
+                addURL(lib.toURL(cacheDir));
+            } catch (Exception e) {
+                log.log(Level.WARNING, String.format("Unable to fetch library %s", lib.file), e);
+                return false;
+            }
+            pending.remove(lib);
+        }
+        return true;
+    }
+
+    /**
+     * Fetch all missing libraries the manifest has no package index for.
+     *
+     * @return true if any library was added
+     */
+    private boolean fetchUnindexed(Set<LibraryFile> failed) {
+        synchronized (unindexed) {
+            boolean added = false;
+            for (Iterator<LibraryFile> it = unindexed.iterator(); it.hasNext(); ) {
+                LibraryFile lib = it.next();
+                if (failed.contains(lib)) continue;
+                try {
+                    fetcher.fetch(lib);
+                    addURL(lib.toURL(cacheDir));
+                } catch (Exception e) {
+                    log.log(Level.WARNING, String.format("Unable to fetch library %s", lib.file), e);
+                    failed.add(lib);
+                    continue;
+                }
+                it.remove();
+                pending.remove(lib);
+                added = true;
+            }
+            return added;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package fxlauncher;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Persistent record of the files in the cache dir that are known to be valid.
+ * <p>
+ * For every library file the index remembers the size, modification time and file key seen when its
+ * checksum was last computed. As long as those attributes are unchanged the checksum is trusted and the
+ * file is not read again, which saves hashing the whole cache on every start. In paranoid mode the
+ * index is still maintained but never trusted, so every file gets a full verify.
+ * <p>
+ * The index is stored as <code>.fxlauncher/files.index</code> inside the cache dir, one tab separated
+ * line per file.
+ */
+class FileStateIndex {
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    static final String DIRECTORY = ".fxlauncher";
+    static final String FILENAME = "files.index";
+
+    private final Path indexPath;
+    private final boolean paranoid;
+    private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+    private volatile boolean dirty;
+
+    private static class Entry {
+        final long size;
+        final long modified;
+        final String fileKey;
+        final long checksum;
+
+        Entry(long size, long modified, String fileKey, long checksum) {
+            this.size = size;
+            this.modified = modified;
+            this.fileKey = fileKey;
+            this.checksum = checksum;
+        }
+
+        Entry(BasicFileAttributes attrs, long checksum) {
+            this(attrs.size(), attrs.lastModifiedTime().toMillis(), fileKey(attrs), checksum);
+        }
+
+        boolean matches(BasicFileAttributes attrs) {
+            return size == attrs.size()
+                    && modified == attrs.lastModifiedTime().toMillis()
+                    && fileKey.equals(fileKey(attrs));
+        }
+
+        private static String fileKey(BasicFileAttributes attrs) {
+            Object key = attrs.fileKey();
+            return key != null ? key.toString() : "-";
+        }
+    }
+
+    private FileStateIndex(Path indexPath, boolean paranoid) {
+        this.indexPath = indexPath;
+        this.paranoid = paranoid;
+    }
+
+    /**
+     * Load the index for the given cache dir. A missing or unreadable index yields an empty one,
+     * which simply means every file is hashed once more.
+     */
+    static FileStateIndex load(Path cacheDir, boolean paranoid) {
+        FileStateIndex index = new FileStateIndex(cacheDir.resolve(DIRECTORY).resolve(FILENAME), paranoid);
+        if (!Files.exists(index.indexPath)) return index;
+
+        try (BufferedReader reader = Files.newBufferedReader(index.indexPath, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split("\t");
+                if (fields.length != 5) continue;
+                index.entries.put(fields[0], new Entry(
+                        Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], Long.parseLong(fields[4])));
+            }
+        } catch (IOException | NumberFormatException e) {
+            log.log(Level.WARNING, String.format("Ignoring unreadable file index %s", index.indexPath), e);
+            index.entries.clear();
+        }
+        return index;
+    }
+
+    /**
+     * Returns the checksum recorded for the file if its attributes have not changed since it was recorded,
+     * or null if the file must be hashed.
+     */
+    Long trustedChecksum(String file, BasicFileAttributes attrs) {
+        if (paranoid) return null;
+        Entry entry = entries.get(file);
+        return entry != null && entry.matches(attrs) ? entry.checksum : null;
+    }
+
+    /**
+     * Record the checksum of a file that has just been hashed or downloaded.
+     */
+    void record(String file, Path path, long checksum) throws IOException {
+        record(file, Files.readAttributes(path, BasicFileAttributes.class), checksum);
+    }
+
+    void record(String file, BasicFileAttributes attrs, long checksum) {
+        entries.put(file, new Entry(attrs, checksum));
+        dirty = true;
+    }
+
+    /**
+     * Forget a file, e.g. when it failed verification.
+     */
+    void remove(String file) {
+        if (entries.remove(file) != null) dirty = true;
+    }
+
+    /**
+     * Write the index back to the cache dir if anything changed.
+     */
+    synchronized void save() {
+        if (!dirty) return;
+        // Entries recorded while the file is written mark the index dirty again
+        dirty = false;
+        try {
+            Files.createDirectories(indexPath.getParent());
+            // Processes sharing the cache dir each write their own temporary file
+            Path temp = Files.createTempFile(indexPath.getParent(), FILENAME, ".tmp");
+            try {
+                try (BufferedWriter writer = Files.newBufferedWriter(temp, StandardCharsets.UTF_8)) {
+                    for (Map.Entry<String, Entry> it : entries.entrySet()) {
+                        Entry entry = it.getValue();
+                        writer.write(String.format("%s\t%d\t%d\t%s\t%d", it.getKey(), entry.size, entry.modified, entry.fileKey, entry.checksum));
+                        writer.newLine();
+                    }
+                }
+                PartialDownload.moveAtomically(temp, indexPath);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            dirty = true;
+            log.log(Level.WARNING, String.format("Unable to write file index %s", indexPath), e);
+        }
+    }
+}
@@ -0,0 +1,109 @@
+package fxlauncher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The HTTP connections shared by the manifest fetch, the mirror probes and all file downloads.
+ * <p>
+ * {@link HttpURLConnection} keeps idle HTTP/1.1 connections, including their TLS sessions, in a per-host
+ * cache, but only when a response is read to the end and closed rather than disconnected. Every request
+ * goes through here so responses are always released that way, and many small files to the same host
+ * are fetched over a handful of persistent connections instead of one TLS handshake per file. The size
+ * of the cache is raised to the number of connections the launcher opens per host, and the Basic
+ * Authorization header is encoded once per set of credentials.
+ * <p>
+ * Every connection gets the connect and read timeouts of <code>--connect-timeout</code> and
+ * <code>--read-timeout</code> in milliseconds, so a stalled server fails over instead of hanging the launch.
+ */
+class HttpTransport {
+    /** Responses with more unread bytes than this are disconnected instead of drained for reuse */
+    private static final int MAX_DRAIN = 64 * 1024;
+    private static final int DEFAULT_MAX_CONNECTIONS = 5;
+
+    static final int DEFAULT_CONNECT_TIMEOUT = 10000;
+    static final int DEFAULT_READ_TIMEOUT = 30000;
+
+    private static volatile int connectTimeout = DEFAULT_CONNECT_TIMEOUT;
+    private static volatile int readTimeout = DEFAULT_READ_TIMEOUT;
+
+    private static final Map<String, String> authorizations = new ConcurrentHashMap<>();
+
+    /**
+     * Set the timeouts from the --connect-timeout and --read-timeout named parameters and size the keep-alive
+     * cache for the connections per host. Must be called before the first request, the cache reads its size only once.
+     */
+    static void configure(Map<String, String> namedParams) {
+        connectTimeout = DownloadEngine.intParam(namedParams, "connect-timeout", DEFAULT_CONNECT_TIMEOUT);
+        readTimeout = DownloadEngine.intParam(namedParams, "read-timeout", DEFAULT_READ_TIMEOUT);
+
+        int connectionsPerHost = DownloadEngine.connectionsPerHost(namedParams);
+        String current = System.getProperty("http.maxConnections");
+        int size = DEFAULT_MAX_CONNECTIONS;
+        if (current != null) {
+            try {
+                size = Integer.parseInt(current.trim());
+            } catch (NumberFormatException e) {
+                // The cache ignores a malformed value as well
+            }
+        }
+        if (connectionsPerHost > size)
+            System.setProperty("http.maxConnections", String.valueOf(connectionsPerHost));
+    }
+
+    static HttpURLConnection open(URI uri) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReadTimeout(readTimeout);
+        if (uri.getUserInfo() != null)
+            connection.setRequestProperty("Authorization", authorizations.computeIfAbsent(uri.getUserInfo(), userInfo -> {
+                byte[] payload = userInfo.getBytes(StandardCharsets.UTF_8);
+                return String.format("Basic %s", Base64.getEncoder().encodeToString(payload));
+            }));
+        return connection;
+    }
+
+    /**
+     * Fail with an IOException naming the URL if the server answered with an error, releasing the
+     * connection first.
+     */
+    static void checkResponse(HttpURLConnection connection) throws IOException {
+        int code = connection.getResponseCode();
+        if (code < 400) return;
+        release(connection);
+        throw new IOException(String.format("Server answered %d for %s", code, connection.getURL()));
+    }
+
+    /**
+     * Hand a connection whose response is not needed back to the keep-alive cache. The rest of a small
+     * response is read and discarded, a large one is disconnected.
+     */
+    static void release(HttpURLConnection connection) {
+        try {
+            InputStream input = connection.getResponseCode() >= 400 ? connection.getErrorStream() : connection.getInputStream();
+            if (input == null) return;
+            try {
+                byte[] buf = new byte[8192];
+                long drained = 0;
+                int read;
+                while ((read = input.read(buf)) > -1) {
+                    drained += read;
+                    if (drained > MAX_DRAIN) {
+                        connection.disconnect();
+                        return;
+                    }
+                }
+            } finally {
+                input.close();
+            }
+        } catch (IOException e) {
+            connection.disconnect();
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package fxlauncher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.net.MalformedURLException;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.file.Paths;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipFile;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A class loader over the library files in the cache dir that uses a {@link ClassIndex} to go straight to
+ * the jars owning the package of a class or resource.
+ * <p>
+ * A plain {@link URLClassLoader} searches every jar in order on each lookup. With the index a class or
+ * resource is read straight from the jars that own its package. Lookups the index can't answer, e.g. for
+ * directories or for names no indexed jar contains, are passed on to the {@link URLClassLoader}, which also
+ * covers jars that couldn't be indexed and jars reached through a <code>Class-Path</code> manifest attribute.
+ * <p>
+ * On Java 9 and later jars are opened as multi-release jars for the running version.
+ * <p>
+ * The application can reach the hit and miss counts through its own class loader.
+ */
+public class IndexedClassLoader extends URLClassLoader {
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    /** JarFile(File, boolean, int, Runtime.Version) and the running version, null before Java 9 */
+    private static final Constructor<JarFile> multiReleaseJar;
+    private static final Object runtimeVersion;
+
+    static {
+        ClassLoader.registerAsParallelCapable();
+
+        Constructor<JarFile> constructor = null;
+        Object version = null;
+        try {
+            Class<?> versionClass = Class.forName("java.lang.Runtime$Version");
+            constructor = JarFile.class.getConstructor(File.class, boolean.class, int.class, versionClass);
+            version = Runtime.class.getMethod("version").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            // Java 8 has no multi-release jars
+            constructor = null;
+        }
+        multiReleaseJar = constructor;
+        runtimeVersion = version;
+    }
+
+    private static class Jar {
+        final URL url;
+        final File file;
+        volatile JarFile jarFile;
+        volatile Manifest manifest;
+
+        Jar(URL url, File file) {
+            this.url = url;
+            this.file = file;
+        }
+
+        synchronized JarFile open() throws IOException {
+            if (jarFile == null) {
+                jarFile = openJar(file);
+                manifest = jarFile.getManifest();
+            }
+            return jarFile;
+        }
+    }
+
+    private static JarFile openJar(File file) throws IOException {
+        if (multiReleaseJar != null) {
+            try {
+                return multiReleaseJar.newInstance(file, true, ZipFile.OPEN_READ, runtimeVersion);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                throw new IOException(e.getCause());
+            } catch (ReflectiveOperationException e) {
+                log.log(Level.FINE, "Unable to open multi-release jar", e);
+            }
+        }
+        return new JarFile(file);
+    }
+
+    private final Map<String, List<Jar>> owners = new ConcurrentHashMap<>();
+    private final List<Jar> jars = new CopyOnWriteArrayList<>();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    /**
+     * @param directories The directories contained in every library file, in class path order
+     */
+    IndexedClassLoader(Map<URL, Set<String>> directories) {
+        super(directories.keySet().toArray(new URL[directories.size()]));
+        directories.forEach(this::index);
+    }
+
+    private void index(URL url, Set<String> directories) {
+        Jar jar;
+        try {
+            jar = new Jar(url, Paths.get(url.toURI()).toFile());
+        } catch (URISyntaxException | IllegalArgumentException e) {
+            throw new IllegalArgumentException("Not a file URL: " + url, e);
+        }
+        jars.add(jar);
+        for (String directory : directories)
+            owners.computeIfAbsent(directory, d -> new CopyOnWriteArrayList<>()).add(jar);
+    }
+
+    /**
+     * Append a library file to the class path, indexing it first.
+     */
+    protected void addURL(URL url) {
+        try {
+            index(url, ClassIndex.scan(Paths.get(url.toURI())));
+        } catch (IOException | URISyntaxException | IllegalArgumentException e) {
+            log.log(Level.WARNING, String.format("Unable to index %s", url), e);
+        }
+        super.addURL(url);
+    }
+
+    /**
+     * True if a jar on the class path contains the directory, e.g. <code>com/example</code>.
+     */
+    boolean isIndexed(String directory) {
+        return owners.containsKey(directory);
+    }
+
+    /**
+     * The number of class and resource lookups that the index resolved to a jar.
+     */
+    public long getIndexHits() {
+        return hits.sum();
+    }
+
+    /**
+     * The number of class and resource lookups that the index had no jar for and were passed on to the
+     * {@link URLClassLoader}.
+     */
+    public long getIndexMisses() {
+        return misses.sum();
+    }
+
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        String path = name.replace('.', '/') + ".class";
+        for (Jar jar : owners(path)) {
+            try {
+                JarEntry entry = jar.open().getJarEntry(path);
+                if (entry == null) continue;
+                hits.increment();
+                return defineClass(name, jar, entry);
+            } catch (IOException e) {
+                throw new ClassNotFoundException(name, e);
+            }
+        }
+        misses.increment();
+        return super.findClass(name);
+    }
+
+    public URL findResource(String name) {
+        if (name.isEmpty() || name.endsWith("/")) return super.findResource(name);
+
+        for (Jar jar : owners(name)) {
+            URL url = resource(jar, name);
+            if (url != null) {
+                hits.increment();
+                return url;
+            }
+        }
+        misses.increment();
+        return super.findResource(name);
+    }
+
+    public Enumeration<URL> findResources(String name) throws IOException {
+        if (name.isEmpty() || name.endsWith("/")) return super.findResources(name);
+
+        Map<String, URL> found = new LinkedHashMap<>();
+        for (Jar jar : owners(name)) {
+            URL url = resource(jar, name);
+            if (url != null) found.put(url.toExternalForm(), url);
+        }
+        if (found.isEmpty()) misses.increment();
+        else hits.increment();
+
+        // Jars outside the index may hold more of them, e.g. service files
+        Enumeration<URL> others = super.findResources(name);
+        while (others.hasMoreElements()) {
+            URL url = others.nextElement();
+            found.putIfAbsent(url.toExternalForm(), url);
+        }
+        return Collections.enumeration(found.values());
+    }
+
+    private List<Jar> owners(String name) {
+        List<Jar> found = owners.get(ClassIndex.directoryOf(name));
+        return found != null ? found : Collections.emptyList();
+    }
+
+    private URL resource(Jar jar, String name) {
+        try {
+            if (jar.open().getJarEntry(name) == null) return null;
+            return new URL("jar:" + jar.url + "!/" + name);
+        } catch (MalformedURLException e) {
+            return null;
+        } catch (IOException e) {
+            log.log(Level.WARNING, String.format("Unable to read %s", jar.file), e);
+            return null;
+        }
+    }
+
+    private Class<?> defineClass(String name, Jar jar, JarEntry entry) throws IOException {
+        int dot = name.lastIndexOf('.');
+        if (dot > 0) definePackage(name.substring(0, dot), jar);
+
+        byte[] bytes;
+        try (InputStream input = jar.jarFile.getInputStream(entry)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream((int) Math.max(entry.getSize(), 1024));
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) > -1)
+                output.write(buffer, 0, read);
+            bytes = output.toByteArray();
+        }
+
+        // Signers are only known after the entry has been read completely
+        CodeSigner[] signers = entry.getCodeSigners();
+        return defineClass(name, bytes, 0, bytes.length, new CodeSource(jar.url, signers));
+    }
+
+    @SuppressWarnings("deprecation")
+    private void definePackage(String pkg, Jar jar) {
+        if (getPackage(pkg) != null) return;
+        try {
+            if (jar.manifest != null)
+                definePackage(pkg, jar.manifest, jar.url);
+            else
+                definePackage(pkg, null, null, null, null, null, null, null);
+        } catch (IllegalArgumentException e) {
+            // Defined concurrently by another thread
+        }
+    }
+
+    public void close() throws IOException {
+        for (Jar jar : jars) {
+            if (jar.jarFile != null) jar.jarFile.close();
+        }
+        super.close();
+    }
+}
@@ -1,5 +1,7 @@
 package fxlauncher;
 
+import com.ande.utils.CacheLock;
+import com.ande.utils.SingleInstance;
 import com.sun.javafx.application.ParametersImpl;
 import com.sun.javafx.application.PlatformImpl;
 import javafx.application.Application;
@@ -13,18 +15,15 @@ import javafx.scene.layout.StackPane;
 import javafx.stage.Stage;
 import javafx.stage.StageStyle;
 
-import javax.xml.bind.JAXB;
 import java.io.ByteArrayOutputStream;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.IOException;
 import java.io.PrintWriter;
-import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URL;
 import java.net.URLClassLoader;
-import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.util.*;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -41,8 +40,11 @@ public class Launcher extends Application {
     private String phase;
     private UIProvider uiProvider;
     private StackPane root;
-    
-    Double progress;
+
+    private static volatile Launcher instance;
+    private volatile DownloadEngine.Transfers backgroundTransfers;
+    private Mirrors mirrors;
+    private List<URI> mirrorCandidates;
 
     /**
      * Initialize the UI Provider by looking for an UIProvider inside the launcher
@@ -54,7 +56,9 @@ public class Launcher extends Application {
      * You must do this manually/in your build right around the "embed manifest" step.
      */
     public void init() throws Exception {
-        loadManifestFromApp();
+        instance = this;
+        HttpTransport.configure(getParameters().getNamed());
+        manifest = loadManifestFromApp(getParameters().getNamed());
         Iterator<UIProvider> providers = ServiceLoader.load(UIProvider.class).iterator();
         uiProvider = providers.hasNext() ? providers.next() : new DefaultUIProvider();
     }
@@ -76,10 +80,12 @@ public class Launcher extends Application {
             Thread.currentThread().setName("FXLauncher-Thread");
             
             Path cacheDir = manifest.resolveCacheDir(getParameters().getNamed());
+            boolean backgroundUpdate = Boolean.parseBoolean(getParameters().getNamed().get("background-update"));
             try {
-                if(! Files.exists(cacheDir) || manifest.isDirEmpty(cacheDir)){
+                if (backgroundUpdate && launchFromCache(cacheDir)) {
+                    startBackgroundUpdate(cacheDir);
+                } else {
                     updateManifest();
-                    createUpdateWrapper();
                     log.info(String.format("Using cache dir %s", cacheDir));
                     syncFiles(cacheDir);
                 }
@@ -98,9 +104,57 @@ public class Launcher extends Application {
     }
 
     public static void main(String[] args) {
+        Map<String, String> namedParams = new ParametersImpl(args).getNamed();
+        boolean singleInstance = Boolean.parseBoolean(namedParams.get("single-instance"));
+        boolean cdsChild = System.getProperty(AppCds.CHILD_PROPERTY) != null;
+
+        // lock diambil sebelum relaunch AppCDS, jadi launch kedua tidak perlu menjalankan child JVM.
+        // Parent memegang lock, child JVM yang menerima argumen dari launch berikutnya
+        if (singleInstance) {
+            if (cdsChild) SingleInstance.listen(instanceLockFile(), Launcher::activate);
+            else if (!SingleInstance.start(instanceLockFile(), args, null)) return;
+        }
+
+        if (Boolean.parseBoolean(namedParams.get("app-cds"))
+                && AppCds.relaunch(args, namedParams, loadManifestFromApp(namedParams)))
+            return;
+
+        if (singleInstance && !cdsChild) SingleInstance.listen(instanceLockFile(), Launcher::activate);
+
         launch(args);
     }
 
+    /**
+     * The single instance lock lives in the user home and is named after the location of the launcher jar,
+     * so every installed launcher has its own instance.
+     */
+    private static Path instanceLockFile() {
+        String location = String.valueOf(Launcher.class.getProtectionDomain().getCodeSource().getLocation());
+        return Paths.get(System.getProperty("user.home"))
+                .resolve(FileStateIndex.DIRECTORY)
+                .resolve(String.format("instance-%08x.lock", location.hashCode()));
+    }
+
+    /**
+     * Called when a second launch forwarded its arguments to this instance. The application receives them
+     * if it implements {@link SingleInstance.ActivationListener}, otherwise its stage is brought to front.
+     */
+    private static void activate(List<String> args) {
+        Launcher launcher = instance;
+        if (launcher == null) return;
+
+        Platform.runLater(() -> {
+            if (launcher.app instanceof SingleInstance.ActivationListener) {
+                ((SingleInstance.ActivationListener) launcher.app).activated(args);
+            } else {
+                Stage front = launcher.app != null ? launcher.primaryStage : launcher.stage;
+                if (front == null) return;
+                front.setIconified(false);
+                front.toFront();
+            }
+        });
+    }
+
     private void createUpdateWrapper() {
         phase = "Update Wrapper Creation";
 
@@ -111,13 +165,47 @@ public class Launcher extends Application {
         });
     }
 
-    private URLClassLoader createClassLoader(Path cacheDir) {
-        List<URL> libs = manifest.files.stream()
+    private URLClassLoader createClassLoader(Path cacheDir) throws IOException {
+        DownloadEngine.Transfers transfers = backgroundTransfers;
+
+        List<LibraryFile> platformFiles = manifest.files.stream()
                 .filter(LibraryFile::loadForCurrentPlatform)
-                .map(it -> it.toURL(cacheDir))
                 .collect(Collectors.toList());
-                
-        return new URLClassLoader(libs.toArray(new URL[libs.size()]));
+
+        // index package/resource -> jar supaya class loader tidak perlu mencari di semua jar
+        ClassIndex classIndex = ClassIndex.load(cacheDir);
+        Map<URL, Set<String>> libs = new LinkedHashMap<>();
+        for (LibraryFile lib : platformFiles) {
+            if (lib.isSynced(cacheDir) && (transfers == null || transfers.isComplete(lib)))
+                libs.put(lib.toURL(cacheDir), classIndex.directories(lib, cacheDir));
+        }
+        classIndex.retain(platformFiles);
+        classIndex.save();
+
+        // lazy lib yang belum ada di cacheDir akan didownload saat class/resource nya pertama kali dipakai,
+        // lib yang masih didownload di background akan ditunggu
+        List<LibraryFile> missing = platformFiles.stream()
+                .filter(it -> !it.isSynced(cacheDir) || (transfers != null && !transfers.isComplete(it)))
+                .collect(Collectors.toList());
+
+        if (missing.isEmpty())
+            return new IndexedClassLoader(libs);
+
+        return new FetchingClassLoader(libs, missing, cacheDir, lib -> {
+            if (transfers != null && transfers.contains(lib))
+                transfers.await(Collections.singletonList(lib));
+            else
+                fetchLazyLibrary(cacheDir, lib);
+        });
+    }
+
+    private void fetchLazyLibrary(Path cacheDir, LibraryFile lib) throws Exception {
+        FileStateIndex index = loadIndex(cacheDir);
+        try (DownloadEngine engine = DownloadEngine.fromParams(getParameters().getNamed(), index)) {
+            engine.download(Collections.singletonList(lib), mirrorsFor(manifest), cacheDir, (read, total) -> { });
+        } finally {
+            index.save();
+        }
     }
 
     private void launchAppFromManifest() throws Exception {
@@ -139,53 +227,211 @@ public class Launcher extends Application {
         });
     }
 
+    /**
+     * Replace the cached manifest with the remote one if it changed.
+     */
     private void updateManifest() throws Exception {
         phase = "Update Manifest";
         syncManifest();
     }
 
+    /**
+     * Apply an update staged by a previous background run and check whether the application can be
+     * started from the cache dir right away, without contacting the server first.
+     */
+    private boolean launchFromCache(Path cacheDir) throws Exception {
+        phase = "Apply Staged Update";
+        FileStateIndex index = loadIndex(cacheDir);
+        try {
+            StagedUpdate staged = new StagedUpdate(cacheDir);
+            // Skip applying while another launcher process is staging, the update is picked up on a later start
+            try (CacheLock lock = CacheLock.tryAcquire(staged.getLockPath())) {
+                if (lock != null && staged.isReady()) {
+                    try {
+                        manifest = staged.apply(index);
+                    } catch (IOException e) {
+                        log.log(Level.WARNING, "Unable to apply staged update, retrying on the next start", e);
+                    }
+                }
+            }
+
+            return !manifest.files.isEmpty()
+                    && Files.exists(manifest.getPath(cacheDir))
+                    && manifest.files.stream()
+                        .filter(LibraryFile::loadForCurrentPlatform)
+                        .filter(it -> it.isSynced(cacheDir))
+                        .noneMatch(it -> it.needsUpdate(cacheDir, index));
+        } finally {
+            index.save();
+        }
+    }
+
+    /**
+     * Fetch the remote manifest while the application is running and stage any changed files,
+     * to be applied by {@link #launchFromCache(Path)} on the next start.
+     */
+    private void startBackgroundUpdate(Path cacheDir) {
+        FXManifest current = manifest;
+        Map<String, String> namedParams = getParameters().getNamed();
+
+        Thread updater = new Thread(() -> {
+            FileStateIndex index = loadIndex(cacheDir);
+            StagedUpdate staged = new StagedUpdate(cacheDir);
+            try {
+                FXManifest remoteManifest = FXManifest.loadIfModified(mirrorsFor(current), current.getPath(cacheDir));
+                if (remoteManifest == null || remoteManifest.equals(current)) return;
+                if (!remoteManifest.isNewerThan(current) && !current.acceptDowngrade) return;
+
+                // Another launcher process sharing the cache dir is already staging this update
+                try (CacheLock lock = CacheLock.tryAcquire(staged.getLockPath())) {
+                    if (lock == null) return;
+                    try (DownloadEngine engine = DownloadEngine.fromParams(namedParams, staged.getIndex())) {
+                        staged.stage(remoteManifest, mirrorsFor(remoteManifest), index, engine);
+                    }
+                }
+            } catch (Exception ex) {
+                log.log(Level.WARNING, String.format("Unable to stage update from %s", current.getFXAppURI()), ex);
+            } finally {
+                index.save();
+            }
+        }, "FXLauncher-Background-Update");
+        updater.setDaemon(true);
+        updater.start();
+    }
+
+    /**
+     * The mirrors of the manifest, probed once for every distinct mirror list.
+     */
+    private synchronized Mirrors mirrorsFor(FXManifest manifest) {
+        List<URI> candidates = new ArrayList<>();
+        candidates.add(manifest.uri);
+        if (manifest.mirrors != null) candidates.addAll(manifest.mirrors);
+
+        if (mirrors == null || !candidates.equals(mirrorCandidates)) {
+            String timeout = getParameters().getNamed().get("mirror-probe-timeout");
+            mirrors = Mirrors.probe(manifest, timeout != null ? Integer.parseInt(timeout.trim()) : Mirrors.DEFAULT_PROBE_TIMEOUT);
+            mirrorCandidates = candidates;
+        }
+        return mirrors;
+    }
+
+    private FileStateIndex loadIndex(Path cacheDir) {
+        return FileStateIndex.load(cacheDir, Boolean.parseBoolean(getParameters().getNamed().get("paranoid-verify")));
+    }
+
     private void syncFiles(Path cacheDir) throws Exception {
         phase = "File Synchronization";
 
+        FileStateIndex index = loadIndex(cacheDir);
+        try {
+            syncFiles(cacheDir, index);
+        } finally {
+            index.save();
+        }
+    }
+
+    private void syncFiles(Path cacheDir, FileStateIndex index) throws Exception {
         // berisi semua tag lib pada app.xml
         // @needsUpdate memfilter tag lib pada app.xml dengan kunci : 
         // jika, os(xmlAtribut) = OS.pada devicenya, karena jika OS nya ga sama berarti bukan update untuk OS tsb
         // dan 
         // needsUpdate dg kriteria, (file tidak ada) OR (size(xmlAtribut) = size.FilePadaDevice) OR (checksum(xmlAtribut)=checksum.FilePadaDevice)
+        // checksum hanya dihitung ulang jika size/mtime/fileKey berbeda dari index, kecuali --paranoid-verify=true
         List<LibraryFile> needsUpdate = manifest.files.stream()
                 .filter(LibraryFile::loadForCurrentPlatform)
-                .filter(it -> it.needsUpdate(cacheDir))
+                .filter(it -> it.isSynced(cacheDir))
+                .filter(it -> it.needsUpdate(cacheDir, index))
                 .collect(Collectors.toList());
-        
-        Long totalBytes = needsUpdate.stream().mapToLong(f -> f.size).sum();
-        Long totalWritten = 0L;
-
-        for (LibraryFile lib : needsUpdate) {
-            Path target = cacheDir.resolve(lib.file).toAbsolutePath();
-            Files.createDirectories(target.getParent());
-
-            URI uri = manifest.uri.resolve(lib.file); // alamat file yang didownload
-            HttpURLConnection connection = (HttpURLConnection) uri.toURL().openConnection();
-            if (uri.getUserInfo() != null) {
-                byte[] payload = uri.getUserInfo().getBytes(StandardCharsets.UTF_8);
-                String encoded = Base64.getEncoder().encodeToString(payload);
-                connection.setRequestProperty("Authorization", String.format("Basic %s", encoded));
+
+        Path sharedStore = manifest.resolveSharedStore(getParameters().getNamed());
+        ContentStore store = sharedStore != null ? new ContentStore(sharedStore) : null;
+        if (store != null) needsUpdate = linkFromStore(store, needsUpdate, cacheDir, index);
+
+        if (needsUpdate.isEmpty()) {
+            log.info("All files are up to date");
+            return;
+        }
+
+        createUpdateWrapper();
+        phase = "File Synchronization";
+
+        // file startup didownload lebih dulu, sisanya sesuai priority
+        needsUpdate.sort(LibraryFile.DOWNLOAD_ORDER);
+        List<LibraryFile> startup = needsUpdate.stream()
+                .filter(LibraryFile::isStartup)
+                .collect(Collectors.toList());
+        boolean pipelined = manifest.files.stream().anyMatch(LibraryFile::isStartup) && startup.size() < needsUpdate.size();
+
+        // dikali 0.8 karena 80% untuk update dan sisa nya untuk init
+        ProgressAggregator progress = new ProgressAggregator(uiProvider, 0.8);
+        progress.begin();
+        DownloadEngine engine = DownloadEngine.fromParams(getParameters().getNamed(), index);
+        DownloadEngine.Transfers transfers = engine.submit(needsUpdate, mirrorsFor(manifest), cacheDir, progress);
+        List<LibraryFile> downloaded = needsUpdate;
+        Runnable finish = () -> {
+            progress.finish();
+            engine.close();
+            index.save();
+            if (store != null)
+                for (LibraryFile lib : downloaded)
+                    if (transfers.isComplete(lib)) store.add(lib, cacheDir.resolve(lib.file));
+        };
+
+        try {
+            transfers.await(pipelined ? startup : needsUpdate);
+        } catch (Exception ex) {
+            transfers.cancel();
+            finish.run();
+            throw ex;
+        }
+
+        if (!pipelined) {
+            finish.run();
+            return;
+        }
+
+        // Start the application now and let the class loader wait for files that are still downloading
+        log.info(String.format("Startup files ready, %d files continue downloading in the background", needsUpdate.size() - startup.size()));
+        backgroundTransfers = transfers;
+        Thread remaining = new Thread(() -> {
+            try {
+                transfers.awaitAll();
+            } catch (Exception ex) {
+                log.log(Level.WARNING, "Error during background file synchronization", ex);
+            } finally {
+                finish.run();
             }
-            try (InputStream input = connection.getInputStream();
-                 OutputStream output = Files.newOutputStream(target)) {
-
-                byte[] buf = new byte[65536];
-
-                int read;
-                while ((read = input.read(buf)) > -1) {
-                    output.write(buf, 0, read);
-                    totalWritten += read;
-                    // dikali 0.8 karena 80% untuk update dan sisa nya untuk init
-                    progress = totalWritten.doubleValue() / totalBytes.doubleValue() * 0.8;
-                    Platform.runLater(() -> uiProvider.updateProgress(progress));
+        }, "FXLauncher-Background-Sync");
+        remaining.setDaemon(true);
+        remaining.start();
+    }
+
+    /**
+     * Link every file that is already in the shared store into the cache dir.
+     *
+     * @return The files that still have to be downloaded
+     */
+    @SuppressWarnings("try")
+    private List<LibraryFile> linkFromStore(ContentStore store, List<LibraryFile> files, Path cacheDir, FileStateIndex index) {
+        List<LibraryFile> missing = new ArrayList<>();
+        for (LibraryFile lib : files) {
+            if (store.contains(lib)) {
+                try (CacheLock lock = CacheLock.acquire(DownloadEngine.lockPath(cacheDir, lib.file))) {
+                    Path target = cacheDir.resolve(lib.file);
+                    if (lib.needsUpdate(cacheDir, index)) {
+                        store.link(lib, target);
+                        index.record(lib.file, target, lib.checksum);
+                    }
+                    continue;
+                } catch (IOException ex) {
+                    log.log(Level.WARNING, String.format("Unable to link %s from shared store", lib.file), ex);
                 }
             }
+            missing.add(lib);
         }
+        if (missing.size() < files.size())
+            log.info(String.format("Linked %d files from shared store", files.size() - missing.size()));
+        return missing;
     }
 
     private void createApplication() throws Exception {
@@ -216,8 +462,14 @@ public class Launcher extends Application {
     }
 
     public void stop() throws Exception {
-        if (app != null)
+        if (app != null) {
+            ClassLoader classLoader = app.getClass().getClassLoader();
+            if (classLoader instanceof IndexedClassLoader) {
+                IndexedClassLoader indexed = (IndexedClassLoader) classLoader;
+                log.info(String.format("Class index lookups: %d hits, %d misses", indexed.getIndexHits(), indexed.getIndexMisses()));
+            }
             app.stop();
+        }
     }
 
     private void reportError(String title, Throwable error) {
@@ -241,23 +493,31 @@ public class Launcher extends Application {
         });
     }
 
-    private void loadManifestFromApp(){
+    private static FXManifest loadManifestFromApp(Map<String, String> namedParams) {
+        FXManifest manifest = null;
         try{
             // manifest based in launcher app
             URL embeddedManifest = Launcher.class.getResource("/app.xml");
-            manifest = JAXB.unmarshal(embeddedManifest, FXManifest.class);
+            manifest = ManifestReader.read(embeddedManifest);
             
-            Path cacheDir = manifest.resolveCacheDir(getParameters().getNamed());
+            Path cacheDir = manifest.resolveCacheDir(namedParams);
             Path manifestPath = manifest.getPath(cacheDir);
 
             // manifest based in cacheDir
             if (Files.exists(manifestPath)){
-                manifest = JAXB.unmarshal(manifestPath.toFile(), FXManifest.class);
+                manifest = ManifestSnapshot.load(manifestPath);
+            } else if (!manifest.parts.isEmpty()) {
+                // The embedded manifest only lists its sub-manifests
+                try {
+                    manifest.resolveParts(manifest.getFXAppURI(), null);
+                } catch (IOException e) {
+                    log.log(Level.WARNING, String.format("Unable to load sub-manifests of %s", manifest.getFXAppURI()), e);
+                }
             }
         }catch(Exception e){
             log.log(Level.WARNING, String.format("Unable load manifest from app !!!"), e);
         }
-        
+        return manifest;
     }
     
     private void syncManifest() throws Exception {
@@ -296,20 +556,24 @@ public class Launcher extends Application {
             Path cacheDir = manifest.resolveCacheDir(namedParams);
             Path manifestPath = manifest.getPath(cacheDir);
             
-            System.out.println("manifest ts = "+manifest.ts);
-            FXManifest remoteManifest = FXManifest.load(manifest.getFXAppURI());
+            FXManifest remoteManifest = FXManifest.loadIfModified(mirrorsFor(manifest), manifestPath);
 
             if (remoteManifest == null) {
-                log.info(String.format("No remote manifest at %s", manifest.getFXAppURI()));
-            } else if (!remoteManifest.equals(manifest)) {
+                log.info(String.format("Remote manifest at %s is not modified", manifest.getFXAppURI()));
+            } else if (remoteManifest.equals(manifest)) {
+                // Running from the embedded manifest, cache it so the validators have a manifest to go with
+                if (!Files.exists(manifestPath)) remoteManifest.save(manifestPath);
+                remoteManifest.saveValidators(manifestPath);
+            } else {
+                log.fine(String.format("Manifest ts = %s, remote ts = %s", manifest.ts, remoteManifest.ts));
                 // Update to remote manifest if newer or we specifically accept downgrades
                 if (remoteManifest.isNewerThan(manifest) || manifest.acceptDowngrade) {
-                    System.out.println("manifest diperbaharui sesuai remote");
+                    log.info(String.format("Manifest updated to the remote one from %s", remoteManifest.getFXAppURI()));
                     manifest = remoteManifest;
-                    JAXB.marshal(manifest, manifestPath.toFile());
+                    manifest.save(manifestPath);
+                    manifest.saveValidators(manifestPath);
                 }
             }
-            System.out.println("remote ts = "+remoteManifest.ts);
         } catch (Exception ex) {
             log.log(Level.WARNING,
                     String.format("Unable to update manifest from %s", manifest.getFXAppURI()), ex);
@@ -8,6 +8,10 @@ import java.net.URL;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.*;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.Adler32;
@@ -21,6 +25,39 @@ public class LibraryFile {
     Long size;
 	@XmlAttribute
 	OS os;
+    /** Checksum of the previous version that the published <code>&lt;file&gt;.patch</code> applies to */
+    @XmlAttribute
+    Long patchFrom;
+    @XmlAttribute
+    Long patchSize;
+    /** Set when a compressed sibling, e.g. <code>&lt;file&gt;.gz</code>, is published next to the file */
+    @XmlAttribute
+    String compression;
+    @XmlAttribute
+    Long compressedSize;
+    /** Modification time of the file when the manifest was created, used for incremental manifest generation */
+    @XmlAttribute
+    Long modified;
+    /** Lazy libraries are not downloaded up front, but fetched the first time one of their packages is used */
+    @XmlAttribute
+    Boolean lazy;
+    /** Comma separated list of the packages in a lazy library, used to route class and resource lookups */
+    @XmlAttribute
+    String packages;
+    /** Startup libraries must be present before the application is created, the rest may still be downloading */
+    @XmlAttribute
+    Boolean startup;
+    /** Download order within the startup and non-startup libraries, lower first */
+    @XmlAttribute
+    Integer priority;
+    /** Pack archive, relative to the manifest uri, that contains this file next to other small files */
+    @XmlAttribute
+    String pack;
+
+    static final String GZIP = "gzip";
+    static final String GZIP_SUFFIX = ".gz";
+    static final String PACK_DIR = "packs";
+    static final String PACK_SUFFIX = ".fxpack";
 
     public boolean needsUpdate(Path cacheDir) {
         Path path = cacheDir.resolve(file);
@@ -31,13 +68,47 @@ public class LibraryFile {
         }
     }
 
+    /**
+     * Same as {@link #needsUpdate(Path)}, but skips hashing the file when the index says its
+     * size, modification time and file key are unchanged since the checksum was last computed.
+     */
+    boolean needsUpdate(Path cacheDir, FileStateIndex index) {
+        Path path = cacheDir.resolve(file);
+        try {
+            if (!Files.exists(path)) return true;
+
+            BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+            if (attrs.size() != size) return true;
+
+            Long known = index.trustedChecksum(file, attrs);
+            if (known != null) return known.longValue() != checksum;
+
+            long actual = checksum(path);
+            index.record(file, attrs, actual);
+            return actual != checksum;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
     public LibraryFile() {
     }
 
     public LibraryFile(Path basepath, Path file) throws IOException {
+        this(basepath, file, null);
+    }
+
+    /**
+     * Create the manifest entry for a file, reusing the checksum of the previous entry for the same
+     * file if its size and modification time are unchanged.
+     */
+    public LibraryFile(Path basepath, Path file, LibraryFile previous) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
         this.file = basepath.relativize(file).toString().replace("\\", "/");
-        this.size = Files.size(file);
-        this.checksum = checksum(file);
+        this.size = attrs.size();
+        this.modified = attrs.lastModifiedTime().toMillis();
+        this.checksum = previous != null && previous.checksum != null && size.equals(previous.size) && modified.equals(previous.modified)
+                ? previous.checksum : checksum(file);
 
 	    String filename = file.getFileName().toString().toLowerCase();
 	    Pattern osPattern = Pattern.compile(".*-(linux|win|mac).jar");
@@ -46,6 +117,71 @@ public class LibraryFile {
 		    this.os = OS.valueOf(osMatcher.group(1));
     }
 
+    boolean isLazy() {
+        return Boolean.TRUE.equals(lazy);
+    }
+
+    /**
+     * True if the file takes part in the up front sync: eager files always do, lazy files only
+     * once they were fetched into the cache dir, so they are kept up to date from then on.
+     */
+    boolean isSynced(Path cacheDir) {
+        return !isLazy() || Files.exists(cacheDir.resolve(file));
+    }
+
+    boolean isStartup() {
+        return Boolean.TRUE.equals(startup);
+    }
+
+    /**
+     * Orders startup libraries first, then by ascending priority. Libraries without a priority come last.
+     */
+    static final Comparator<LibraryFile> DOWNLOAD_ORDER = Comparator
+            .comparing((LibraryFile lib) -> !lib.isStartup())
+            .thenComparing(lib -> lib.priority != null ? lib.priority : Integer.MAX_VALUE);
+
+    List<String> getPackages() {
+        if (packages == null || packages.isEmpty()) return Collections.emptyList();
+        return Arrays.asList(packages.split(","));
+    }
+
+    static final String SERVICES = "META-INF/services/";
+
+    /**
+     * Collect the packages of all classes and resources in a jar file, and the service provider files
+     * by their full name. Other files under META-INF are left out.
+     */
+    static String scanPackages(Path jar) throws IOException {
+        Set<String> found = new TreeSet<>();
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            Enumeration<JarEntry> entries = jarFile.entries();
+            while (entries.hasMoreElements()) {
+                JarEntry entry = entries.nextElement();
+                String name = entry.getName();
+                if (entry.isDirectory()) continue;
+                if (name.startsWith(SERVICES) && name.length() > SERVICES.length()) {
+                    found.add(name);
+                    continue;
+                }
+                if (name.startsWith("META-INF/")) continue;
+                int slash = name.lastIndexOf('/');
+                found.add(slash > 0 ? name.substring(0, slash).replace('/', '.') : "");
+            }
+        }
+        return String.join(",", found);
+    }
+
+    boolean isCompressed() {
+        return GZIP.equals(compression) && compressedSize != null;
+    }
+
+    /**
+     * The number of bytes that go over the wire for a full download of this file.
+     */
+    long transferSize() {
+        return isCompressed() ? compressedSize : size;
+    }
+
     public boolean loadForCurrentPlatform() {
             return os == null || os == OS.current;
     }
@@ -58,7 +194,7 @@ public class LibraryFile {
         }
     }
 
-    private static long checksum(Path path) throws IOException {
+    static long checksum(Path path) throws IOException {
         try (InputStream input = Files.newInputStream(path)) {
             Adler32 checksum = new Adler32();
             byte[] buf = new byte[16384];
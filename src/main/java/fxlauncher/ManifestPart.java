@@ -0,0 +1,116 @@
+package fxlauncher;
+
+import javax.xml.bind.annotation.XmlAttribute;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.List;
+
+/**
+ * A sub-manifest that lists the files of one directory of the app, referenced from the root manifest
+ * by its SHA-256 hash.
+ * <p>
+ * Sub-manifests are published under <code>manifests/</code> and named after their hash, so their content
+ * never changes and an unchanged directory has the same hash in every release. The root manifest carries
+ * a tree hash over all parts. The launcher compares the tree hash first and then the hash of every part,
+ * and only downloads the sub-manifests of directories that changed since the cached manifest.
+ */
+public class ManifestPart {
+    static final String DIRECTORY = "manifests";
+
+    /** The directory whose files the sub-manifest lists */
+    @XmlAttribute
+    String name;
+    /** The sub-manifest, relative to the root manifest */
+    @XmlAttribute
+    String file;
+    /** Hex SHA-256 of the sub-manifest */
+    @XmlAttribute
+    String hash;
+
+    public ManifestPart() {
+    }
+
+    ManifestPart(String name, byte[] content) {
+        this.name = name;
+        this.hash = hex(sha256().digest(content));
+        this.file = String.format("%s/%s.xml", DIRECTORY, hash);
+    }
+
+    /**
+     * True if the file lies directly in the directory of this part.
+     */
+    boolean contains(LibraryFile lib) {
+        return name.equals(directoryOf(lib.file));
+    }
+
+    /**
+     * @return The directory of a file in the manifest, or null for files at the top of the app
+     */
+    static String directoryOf(String file) {
+        int slash = file.lastIndexOf('/');
+        return slash < 0 ? null : file.substring(0, slash);
+    }
+
+    /**
+     * Download the sub-manifest relative to the root manifest and return its files, after verifying
+     * the content against the hash the root manifest lists for it.
+     */
+    List<LibraryFile> load(URI manifestUri) throws IOException {
+        URI uri = manifestUri.resolve(file);
+        byte[] content;
+        if ("http".equals(uri.getScheme()) || "https".equals(uri.getScheme())) {
+            HttpURLConnection connection = HttpTransport.open(uri);
+            HttpTransport.checkResponse(connection);
+            try (InputStream input = connection.getInputStream()) {
+                content = readFully(input);
+            }
+        } else {
+            try (InputStream input = uri.toURL().openStream()) {
+                content = readFully(input);
+            }
+        }
+
+        if (!hash.equals(hex(sha256().digest(content))))
+            throw new IOException(String.format("Sub-manifest %s does not match its hash %s", uri, hash));
+        return ManifestReader.read(new ByteArrayInputStream(content)).files;
+    }
+
+    /**
+     * The root hash over the names and hashes of all parts.
+     */
+    static String treeHash(List<ManifestPart> parts) {
+        MessageDigest md = sha256();
+        for (ManifestPart part : parts)
+            md.update(String.format("%s\t%s\n", part.name, part.hash).getBytes(StandardCharsets.UTF_8));
+        return hex(md.digest());
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int read;
+        while ((read = input.read(buf)) > -1) output.write(buf, 0, read);
+        return output.toByteArray();
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) hex.append(String.format("%02x", b));
+        return hex.toString();
+    }
+}
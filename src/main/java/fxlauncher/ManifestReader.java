@@ -0,0 +1,195 @@
+package fxlauncher;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Reads an <code>app.xml</code> manifest with a StAX parser instead of JAXB.
+ * <p>
+ * Creating the JAXB context costs hundreds of milliseconds on a cold start, and unmarshalling large
+ * manifests through reflection is slow. This reader understands the same schema that {@link FXManifest}
+ * and {@link LibraryFile} declare with their JAXB annotations, and skips elements and attributes it
+ * doesn't know, so manifests from newer launchers can still be read. Manifests are still written with JAXB.
+ */
+class ManifestReader {
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+    }
+
+    static FXManifest read(Path path) throws IOException {
+        try (InputStream input = Files.newInputStream(path)) {
+            return read(input);
+        }
+    }
+
+    static FXManifest read(URL url) throws IOException {
+        try (InputStream input = url.openStream()) {
+            return read(input);
+        }
+    }
+
+    static FXManifest read(InputStream input) throws IOException {
+        XMLStreamReader reader = null;
+        try {
+            reader = factory.createXMLStreamReader(new BufferedInputStream(input));
+            reader.nextTag();
+            if (!"Application".equals(reader.getLocalName()))
+                throw new IOException(String.format("Not a manifest, root element is %s", reader.getLocalName()));
+
+            FXManifest manifest = new FXManifest();
+            String ts = reader.getAttributeValue(null, "ts");
+            if (ts != null) manifest.ts = Long.valueOf(ts.trim());
+            String uri = reader.getAttributeValue(null, "uri");
+            if (uri != null) manifest.uri = URI.create(uri.trim());
+            manifest.launchClass = reader.getAttributeValue(null, "launch");
+            manifest.treeHash = reader.getAttributeValue(null, "tree");
+
+            while (reader.nextTag() == XMLStreamConstants.START_ELEMENT) {
+                switch (reader.getLocalName()) {
+                    case "lib":
+                        manifest.files.add(readLibraryFile(reader));
+                        break;
+                    case "part":
+                        manifest.parts.add(readPart(reader));
+                        break;
+                    case "mirror":
+                        manifest.mirrors.add(URI.create(reader.getElementText().trim()));
+                        break;
+                    case "updateText":
+                        manifest.updateText = reader.getElementText();
+                        break;
+                    case "updateLabelStyle":
+                        manifest.updateLabelStyle = reader.getElementText();
+                        break;
+                    case "progressBarStyle":
+                        manifest.progressBarStyle = reader.getElementText();
+                        break;
+                    case "wrapperStyle":
+                        manifest.wrapperStyle = reader.getElementText();
+                        break;
+                    case "parameters":
+                        manifest.parameters = reader.getElementText();
+                        break;
+                    case "cacheDir":
+                        manifest.cacheDir = reader.getElementText();
+                        break;
+                    case "sharedStore":
+                        manifest.sharedStore = reader.getElementText();
+                        break;
+                    case "acceptDowngrade":
+                        manifest.acceptDowngrade = parseBoolean(reader.getElementText());
+                        break;
+                    case "preloadNativeLibraries":
+                        manifest.preloadNativeLibraries = reader.getElementText();
+                        break;
+                    default:
+                        skipElement(reader);
+                }
+            }
+            return manifest;
+        } catch (XMLStreamException | IllegalArgumentException e) {
+            throw new IOException("Unable to read manifest", e);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignored) {
+                }
+            }
+        }
+    }
+
+    private static LibraryFile readLibraryFile(XMLStreamReader reader) throws XMLStreamException {
+        LibraryFile lib = new LibraryFile();
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            String value = reader.getAttributeValue(i);
+            switch (reader.getAttributeLocalName(i)) {
+                case "file":
+                    lib.file = value;
+                    break;
+                case "checksum":
+                    lib.checksum = Long.valueOf(value.trim());
+                    break;
+                case "size":
+                    lib.size = Long.valueOf(value.trim());
+                    break;
+                case "os":
+                    lib.os = OS.valueOf(value.trim());
+                    break;
+                case "patchFrom":
+                    lib.patchFrom = Long.valueOf(value.trim());
+                    break;
+                case "patchSize":
+                    lib.patchSize = Long.valueOf(value.trim());
+                    break;
+                case "compression":
+                    lib.compression = value;
+                    break;
+                case "compressedSize":
+                    lib.compressedSize = Long.valueOf(value.trim());
+                    break;
+                case "modified":
+                    lib.modified = Long.valueOf(value.trim());
+                    break;
+                case "lazy":
+                    lib.lazy = parseBoolean(value);
+                    break;
+                case "packages":
+                    lib.packages = value;
+                    break;
+                case "startup":
+                    lib.startup = parseBoolean(value);
+                    break;
+                case "priority":
+                    lib.priority = Integer.valueOf(value.trim());
+                    break;
+                case "pack":
+                    lib.pack = value;
+                    break;
+            }
+        }
+        skipElement(reader);
+        return lib;
+    }
+
+    private static ManifestPart readPart(XMLStreamReader reader) throws XMLStreamException {
+        ManifestPart part = new ManifestPart();
+        part.name = reader.getAttributeValue(null, "name");
+        part.file = reader.getAttributeValue(null, "file");
+        part.hash = reader.getAttributeValue(null, "hash");
+        skipElement(reader);
+        return part;
+    }
+
+    /**
+     * xs:boolean accepts 1 and 0 next to true and false.
+     */
+    private static Boolean parseBoolean(String value) {
+        String trimmed = value.trim();
+        return "true".equals(trimmed) || "1".equals(trimmed);
+    }
+
+    /**
+     * Move the reader past the end of the current element, including everything nested in it.
+     */
+    private static void skipElement(XMLStreamReader reader) throws XMLStreamException {
+        int depth = 1;
+        while (depth > 0) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) depth++;
+            else if (event == XMLStreamConstants.END_ELEMENT) depth--;
+        }
+    }
+}
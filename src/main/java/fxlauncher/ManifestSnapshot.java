@@ -0,0 +1,235 @@
+package fxlauncher;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A compact binary copy of the cached manifest that a warm start reads instead of parsing XML.
+ * <p>
+ * The snapshot is stored next to the cached manifest as <code>&lt;manifest&gt;.snapshot</code>. It is
+ * read into memory in one call and decoded field by field, without reflection. It is not memory-mapped,
+ * since Windows can't replace a file while a mapping of it is alive, and the snapshot is replaced after
+ * every update. It records the size and modification time of
+ * the XML it was made from. When the XML changed, e.g. because an update was accepted, the snapshot is
+ * ignored and rebuilt from the XML. The XML stays the interchange format.
+ */
+class ManifestSnapshot {
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    private static final int MAGIC = 0x46584d53; // FXMS
+    private static final int VERSION = 4;
+
+    static Path getSnapshotPath(Path manifestPath) {
+        return manifestPath.resolveSibling(manifestPath.getFileName() + ".snapshot");
+    }
+
+    /**
+     * Load the cached manifest from its snapshot, or from the XML if the snapshot is missing or stale.
+     * A stale snapshot is rebuilt.
+     */
+    static FXManifest load(Path manifestPath) throws IOException {
+        BasicFileAttributes attrs = Files.readAttributes(manifestPath, BasicFileAttributes.class);
+        Path snapshotPath = getSnapshotPath(manifestPath);
+
+        if (Files.exists(snapshotPath)) {
+            try {
+                FXManifest manifest = read(snapshotPath, attrs);
+                if (manifest != null) return manifest;
+            } catch (IOException | RuntimeException e) {
+                log.log(Level.WARNING, String.format("Ignoring unreadable manifest snapshot %s", snapshotPath), e);
+            }
+        }
+
+        FXManifest manifest = ManifestReader.read(manifestPath);
+        write(manifest, manifestPath);
+        return manifest;
+    }
+
+    /**
+     * Write the snapshot for the manifest that was just saved at the given path. Failing to write it
+     * only means the next start reads the XML.
+     */
+    static void write(FXManifest manifest, Path manifestPath) {
+        Path snapshotPath = getSnapshotPath(manifestPath);
+        try {
+            BasicFileAttributes attrs = Files.readAttributes(manifestPath, BasicFileAttributes.class);
+
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream output = new DataOutputStream(bytes);
+            output.writeInt(MAGIC);
+            output.writeInt(VERSION);
+            output.writeLong(attrs.size());
+            output.writeLong(attrs.lastModifiedTime().toMillis());
+
+            writeLong(output, manifest.ts);
+            writeString(output, manifest.uri != null ? manifest.uri.toString() : null);
+            writeString(output, manifest.launchClass);
+            writeString(output, manifest.treeHash);
+            output.writeInt(manifest.mirrors.size());
+            for (URI mirror : manifest.mirrors) writeString(output, mirror.toString());
+            output.writeInt(manifest.parts.size());
+            for (ManifestPart part : manifest.parts) {
+                writeString(output, part.name);
+                writeString(output, part.file);
+                writeString(output, part.hash);
+            }
+            writeString(output, manifest.updateText);
+            writeString(output, manifest.updateLabelStyle);
+            writeString(output, manifest.progressBarStyle);
+            writeString(output, manifest.wrapperStyle);
+            writeString(output, manifest.parameters);
+            writeString(output, manifest.cacheDir);
+            writeString(output, manifest.sharedStore);
+            writeBoolean(output, manifest.acceptDowngrade);
+            writeString(output, manifest.preloadNativeLibraries);
+
+            output.writeInt(manifest.files.size());
+            for (LibraryFile lib : manifest.files) {
+                writeString(output, lib.file);
+                writeLong(output, lib.checksum);
+                writeLong(output, lib.size);
+                writeString(output, lib.os != null ? lib.os.name() : null);
+                writeLong(output, lib.patchFrom);
+                writeLong(output, lib.patchSize);
+                writeString(output, lib.compression);
+                writeLong(output, lib.compressedSize);
+                writeLong(output, lib.modified);
+                writeBoolean(output, lib.lazy);
+                writeString(output, lib.packages);
+                writeBoolean(output, lib.startup);
+                writeLong(output, lib.priority != null ? lib.priority.longValue() : null);
+                writeString(output, lib.pack);
+            }
+            output.flush();
+
+            Path temp = Files.createTempFile(snapshotPath.toAbsolutePath().getParent(), snapshotPath.getFileName().toString(), ".tmp");
+            try {
+                Files.write(temp, bytes.toByteArray());
+                PartialDownload.moveAtomically(temp, snapshotPath);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+        } catch (IOException e) {
+            log.log(Level.FINE, String.format("Unable to write manifest snapshot %s", snapshotPath), e);
+        }
+    }
+
+    /**
+     * @return The manifest, or null if the snapshot was made from another version of the XML
+     */
+    private static FXManifest read(Path snapshotPath, BasicFileAttributes attrs) throws IOException {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(snapshotPath, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException(String.format("Manifest snapshot %s is too large", snapshotPath));
+            buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) > -1) ;
+            buffer.flip();
+        }
+
+        try {
+            if (buffer.getInt() != MAGIC || buffer.getInt() != VERSION) return null;
+            if (buffer.getLong() != attrs.size() || buffer.getLong() != attrs.lastModifiedTime().toMillis())
+                return null;
+
+            FXManifest manifest = new FXManifest();
+            manifest.ts = readLong(buffer);
+            String uri = readString(buffer);
+            manifest.uri = uri != null ? URI.create(uri) : null;
+            manifest.launchClass = readString(buffer);
+            manifest.treeHash = readString(buffer);
+            int mirrors = buffer.getInt();
+            for (int i = 0; i < mirrors; i++) manifest.mirrors.add(URI.create(readString(buffer)));
+            int parts = buffer.getInt();
+            for (int i = 0; i < parts; i++) {
+                ManifestPart part = new ManifestPart();
+                part.name = readString(buffer);
+                part.file = readString(buffer);
+                part.hash = readString(buffer);
+                manifest.parts.add(part);
+            }
+            manifest.updateText = readString(buffer);
+            manifest.updateLabelStyle = readString(buffer);
+            manifest.progressBarStyle = readString(buffer);
+            manifest.wrapperStyle = readString(buffer);
+            manifest.parameters = readString(buffer);
+            manifest.cacheDir = readString(buffer);
+            manifest.sharedStore = readString(buffer);
+            manifest.acceptDowngrade = readBoolean(buffer);
+            manifest.preloadNativeLibraries = readString(buffer);
+
+            int count = buffer.getInt();
+            for (int i = 0; i < count; i++) {
+                LibraryFile lib = new LibraryFile();
+                lib.file = readString(buffer);
+                lib.checksum = readLong(buffer);
+                lib.size = readLong(buffer);
+                String os = readString(buffer);
+                lib.os = os != null ? OS.valueOf(os) : null;
+                lib.patchFrom = readLong(buffer);
+                lib.patchSize = readLong(buffer);
+                lib.compression = readString(buffer);
+                lib.compressedSize = readLong(buffer);
+                lib.modified = readLong(buffer);
+                lib.lazy = readBoolean(buffer);
+                lib.packages = readString(buffer);
+                lib.startup = readBoolean(buffer);
+                Long priority = readLong(buffer);
+                lib.priority = priority != null ? priority.intValue() : null;
+                lib.pack = readString(buffer);
+                manifest.files.add(lib);
+            }
+            return manifest;
+        } catch (BufferUnderflowException e) {
+            throw new IOException(String.format("Truncated manifest snapshot %s", snapshotPath), e);
+        }
+    }
+
+    private static void writeString(DataOutputStream output, String value) throws IOException {
+        if (value == null) {
+            output.writeInt(-1);
+            return;
+        }
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        output.writeInt(bytes.length);
+        output.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) return null;
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void writeLong(DataOutputStream output, Long value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) output.writeLong(value);
+    }
+
+    private static Long readLong(ByteBuffer buffer) {
+        return buffer.get() != 0 ? buffer.getLong() : null;
+    }
+
+    private static void writeBoolean(DataOutputStream output, Boolean value) throws IOException {
+        output.writeByte(value == null ? -1 : value ? 1 : 0);
+    }
+
+    private static Boolean readBoolean(ByteBuffer buffer) {
+        byte value = buffer.get();
+        return value < 0 ? null : value != 0;
+    }
+}
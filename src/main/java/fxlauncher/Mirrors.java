@@ -0,0 +1,161 @@
+package fxlauncher;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URI;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The healthy mirrors of an app, fastest first.
+ * <p>
+ * Every mirror is probed at the same time with a HEAD request for its <code>app.xml</code>. Probing stops
+ * once twice the latency of the fastest mirror has passed, but never before {@link #COLLECTION_WINDOW} ms,
+ * so a dead mirror doesn't hold up the launch. Files are spread round-robin over the mirrors that answered
+ * in that window, and each file fails over to the remaining mirrors in order of latency, followed by the
+ * mirrors that had not answered yet. Mirrors that answered with an error are left out. A mirror that fails
+ * a transfer is not used for later files while other mirrors are left.
+ */
+class Mirrors {
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    static final int DEFAULT_PROBE_TIMEOUT = 2000;
+    static final int COLLECTION_WINDOW = 100;
+
+    private final List<URI> healthy;
+    private final int preferred;
+    private final AtomicInteger next = new AtomicInteger();
+
+    private Mirrors(List<URI> healthy, int preferred) {
+        this.healthy = new CopyOnWriteArrayList<>(healthy);
+        this.preferred = Math.max(1, preferred);
+    }
+
+    /**
+     * A single base URI without any probing.
+     */
+    static Mirrors of(URI uri) {
+        return new Mirrors(Collections.singletonList(asDirectory(uri)), 1);
+    }
+
+    /**
+     * Probe the primary URI and the mirrors of the manifest in parallel. Without mirrors nothing is probed.
+     * If no mirror answers, the primary URI is used on its own.
+     *
+     * @param timeout The milliseconds to wait for the first mirror to answer
+     */
+    static Mirrors probe(FXManifest manifest, int timeout) {
+        if (manifest.mirrors == null || manifest.mirrors.isEmpty()) return of(manifest.uri);
+
+        Set<URI> candidates = new LinkedHashSet<>();
+        candidates.add(asDirectory(manifest.uri));
+        for (URI mirror : manifest.mirrors) candidates.add(asDirectory(mirror));
+
+        ExecutorService executor = Executors.newFixedThreadPool(candidates.size(), r -> {
+            Thread thread = new Thread(r, "FXLauncher-Mirror-Probe");
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            long start = System.nanoTime();
+            CompletionService<Long> completion = new ExecutorCompletionService<>(executor);
+            Map<Future<Long>, URI> probes = new HashMap<>();
+            for (URI candidate : candidates)
+                probes.put(completion.submit(() -> latency(candidate, timeout)), candidate);
+
+            Map<URI, Long> latencies = new LinkedHashMap<>();
+            Set<URI> unanswered = new LinkedHashSet<>(candidates);
+            long deadline = start + TimeUnit.MILLISECONDS.toNanos(timeout);
+            for (int i = 0; i < probes.size(); i++) {
+                try {
+                    Future<Long> probe = completion.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (probe == null) break;
+                    URI candidate = probes.get(probe);
+                    unanswered.remove(candidate);
+                    try {
+                        latencies.put(candidate, probe.get());
+                    } catch (ExecutionException e) {
+                        log.log(Level.INFO, String.format("Mirror %s is not available", candidate), e.getCause());
+                        continue;
+                    }
+                    // Wait for the mirrors that are at most twice as slow as the fastest one
+                    if (latencies.size() == 1) {
+                        long window = Math.max(2 * latencies.get(candidate), COLLECTION_WINDOW);
+                        deadline = Math.min(deadline, start + TimeUnit.MILLISECONDS.toNanos(window));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+            if (latencies.isEmpty()) return of(manifest.uri);
+
+            List<URI> healthy = new ArrayList<>(latencies.keySet());
+            healthy.sort(Comparator.comparing(latencies::get));
+            long fastest = latencies.get(healthy.get(0));
+            int preferred = (int) healthy.stream().filter(uri -> latencies.get(uri) <= 2 * fastest).count();
+            // Mirrors that are still probing only get files that failed on all the others
+            healthy.addAll(unanswered);
+
+            log.info(String.format("Using mirrors %s with latencies %s ms", healthy, latencies));
+            return new Mirrors(healthy, preferred);
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    /**
+     * Milliseconds until the mirror answered a HEAD request for its <code>app.xml</code>.
+     */
+    private static long latency(URI mirror, int timeout) throws IOException {
+        long start = System.nanoTime();
+        HttpURLConnection connection = HttpTransport.open(FXManifest.getFXAppURI(mirror));
+        connection.setRequestMethod("HEAD");
+        connection.setConnectTimeout(timeout);
+        connection.setReadTimeout(timeout);
+        try {
+            int code = connection.getResponseCode();
+            if (code >= 400 && code != HttpURLConnection.HTTP_BAD_METHOD)
+                throw new IOException(String.format("Mirror %s answered %d", mirror, code));
+            return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        } finally {
+            HttpTransport.release(connection);
+        }
+    }
+
+    private static URI asDirectory(URI uri) {
+        return uri.getPath() == null || uri.getPath().endsWith("/") ? uri : URI.create(uri + "/");
+    }
+
+    /**
+     * The healthy mirrors, fastest first.
+     */
+    List<URI> ranked() {
+        return new ArrayList<>(healthy);
+    }
+
+    /**
+     * The mirrors to try for the next file, in order. The first one rotates over the preferred mirrors,
+     * the others follow in order of latency.
+     */
+    List<URI> forNextFile() {
+        List<URI> current = new ArrayList<>(healthy);
+        int preferredCount = Math.min(preferred, current.size());
+        URI first = current.remove(Math.floorMod(next.getAndIncrement(), preferredCount));
+        current.add(0, first);
+        return current;
+    }
+
+    /**
+     * Stop using a mirror that failed a transfer, unless it is the last one left.
+     */
+    void failed(URI mirror) {
+        synchronized (healthy) {
+            if (healthy.size() > 1 && healthy.remove(mirror))
+                log.info(String.format("Not using mirror %s for the remaining files", mirror));
+        }
+    }
+}
@@ -0,0 +1,281 @@
+package fxlauncher;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Properties;
+import java.util.zip.Adler32;
+
+/**
+ * The on-disk state of an interrupted download.
+ * <p>
+ * Bytes are written to <code>&lt;target&gt;.part</code> and every few megabytes the part file is
+ * forced to disk and its length is recorded in <code>&lt;target&gt;.part.journal</code>. The journal
+ * also records which version of the file (checksum/size) and which server entity (ETag/Last-Modified)
+ * the bytes belong to, so a restart only resumes when it is still fetching the very same file.
+ * <p>
+ * A file downloaded in byte ranges is preallocated in the part file instead, and the bytes written
+ * for every range are recorded in <code>&lt;target&gt;.part.ranges</code>, so an interrupted ranged
+ * download only fetches the rest of every range again.
+ * <p>
+ * The target itself is only replaced once the part file is complete and matches the manifest
+ * size and checksum, so a half-written jar never ends up on the class path.
+ */
+class PartialDownload {
+    /** Number of bytes written between two journal checkpoints */
+    static final long CHECKPOINT_INTERVAL = 4 * 1024 * 1024;
+
+    final Path target;
+    final Path part;
+    final Path journal;
+    final Path ranges;
+    private final LibraryFile lib;
+
+    long offset;
+    String etag;
+    String lastModified;
+
+    /** The length of every range but the last, and the bytes written for each range */
+    long rangeSize;
+    long[] rangeDone;
+
+    PartialDownload(LibraryFile lib, Path target) {
+        this.lib = lib;
+        this.target = target;
+        this.part = target.resolveSibling(target.getFileName() + ".part");
+        this.journal = target.resolveSibling(target.getFileName() + ".part.journal");
+        this.ranges = target.resolveSibling(target.getFileName() + ".part.ranges");
+    }
+
+    /**
+     * Read the journal and return the offset it is safe to resume from. A journal that belongs to
+     * another version of the file, or a part file shorter than the journaled offset, resets the
+     * download to zero. An unreadable journal is discarded together with the part file.
+     */
+    long load() throws IOException {
+        offset = 0;
+        etag = null;
+        lastModified = null;
+
+        if (!Files.exists(journal) || !Files.exists(part)) return offset;
+
+        Properties props = new Properties();
+        long verified;
+        try (InputStream input = Files.newInputStream(journal)) {
+            props.load(input);
+            verified = Long.parseLong(props.getProperty("offset", "0").trim());
+        } catch (IllegalArgumentException corrupt) {
+            discard();
+            return offset;
+        }
+
+        if (!String.valueOf(lib.checksum).equals(props.getProperty("checksum"))
+                || !String.valueOf(lib.size).equals(props.getProperty("size")))
+            return offset;
+
+        if (verified <= 0 || verified > lib.size || Files.size(part) < verified) return offset;
+
+        offset = verified;
+        etag = props.getProperty("etag");
+        lastModified = props.getProperty("lastModified");
+        return offset;
+    }
+
+    /**
+     * Open the part file for writing from the current offset, dropping any bytes beyond the
+     * last checkpoint since they were never confirmed to be on disk.
+     */
+    FileChannel open() throws IOException {
+        // The part file no longer holds the ranges
+        Files.deleteIfExists(ranges);
+        FileChannel channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        channel.truncate(offset);
+        channel.position(offset);
+        return channel;
+    }
+
+    /**
+     * Force written bytes to disk and record the new offset in the journal.
+     */
+    void checkpoint(FileChannel channel) throws IOException {
+        channel.force(false);
+        offset = channel.position();
+
+        Properties props = new Properties();
+        props.setProperty("checksum", String.valueOf(lib.checksum));
+        props.setProperty("size", String.valueOf(lib.size));
+        props.setProperty("offset", String.valueOf(offset));
+        if (etag != null) props.setProperty("etag", etag);
+        if (lastModified != null) props.setProperty("lastModified", lastModified);
+
+        store(props, journal);
+    }
+
+    /**
+     * Read the ranges journal of an interrupted ranged download.
+     *
+     * @return false, with the ranges journal removed, if there is no ranged download of this version of the file to resume
+     */
+    boolean loadRanges() throws IOException {
+        rangeSize = 0;
+        rangeDone = null;
+        if (!Files.exists(ranges)) return false;
+
+        Properties props = new Properties();
+        try (InputStream input = Files.newInputStream(ranges)) {
+            props.load(input);
+            if (String.valueOf(lib.checksum).equals(props.getProperty("checksum"))
+                    && String.valueOf(lib.size).equals(props.getProperty("size"))
+                    && Files.exists(part) && Files.size(part) == lib.size) {
+                long size = Long.parseLong(props.getProperty("rangeSize").trim());
+                long[] done = new long[(int) ((lib.size + size - 1) / size)];
+                for (int i = 0; i < done.length; i++) {
+                    done[i] = Long.parseLong(props.getProperty("range." + i, "0").trim());
+                    if (done[i] < 0 || done[i] > rangeLength(size, i)) throw new NumberFormatException("Range " + i + " out of bounds");
+                }
+                rangeSize = size;
+                rangeDone = done;
+                etag = props.getProperty("etag");
+                lastModified = props.getProperty("lastModified");
+                return true;
+            }
+        } catch (IllegalArgumentException | ArithmeticException corrupt) {
+            // Unreadable, start over
+        }
+        Files.deleteIfExists(ranges);
+        return false;
+    }
+
+    /**
+     * Start a ranged download from scratch with ranges of the given size.
+     */
+    void startRanges(long size) {
+        rangeSize = size;
+        rangeDone = new long[(int) ((lib.size + size - 1) / size)];
+        etag = null;
+        lastModified = null;
+    }
+
+    long rangeStart(int range) {
+        return range * rangeSize;
+    }
+
+    long rangeLength(int range) {
+        return rangeLength(rangeSize, range);
+    }
+
+    private long rangeLength(long size, int range) {
+        return Math.min(lib.size, (range + 1) * size) - range * size;
+    }
+
+    /**
+     * Force written bytes to disk and record how many bytes of the range have been written.
+     */
+    synchronized void checkpointRange(FileChannel channel, int range, long done) throws IOException {
+        channel.force(false);
+        rangeDone[range] = done;
+
+        Properties props = new Properties();
+        props.setProperty("checksum", String.valueOf(lib.checksum));
+        props.setProperty("size", String.valueOf(lib.size));
+        props.setProperty("rangeSize", String.valueOf(rangeSize));
+        for (int i = 0; i < rangeDone.length; i++) props.setProperty("range." + i, String.valueOf(rangeDone[i]));
+        if (etag != null) props.setProperty("etag", etag);
+        if (lastModified != null) props.setProperty("lastModified", lastModified);
+
+        store(props, ranges);
+    }
+
+    /**
+     * Write a journal to a temporary file first and move it into place, so an interruption leaves the
+     * previous journal intact.
+     */
+    private void store(Properties props, Path path) throws IOException {
+        Path temp = Files.createTempFile(path.toAbsolutePath().getParent(), path.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream output = Files.newOutputStream(temp)) {
+                props.store(output, lib.file);
+            }
+            moveAtomically(temp, path);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     * Start over from byte zero, e.g. when the server ignored the Range request.
+     */
+    void reset(FileChannel channel) throws IOException {
+        offset = 0;
+        channel.truncate(0);
+        channel.position(0);
+        Files.deleteIfExists(journal);
+    }
+
+    /**
+     * Create an Adler32 primed with the bytes already in the part file, so the checksum of the
+     * whole file can be computed while the remainder is downloaded.
+     */
+    Adler32 checksum() throws IOException {
+        Adler32 checksum = new Adler32();
+        if (offset == 0) return checksum;
+
+        try (InputStream input = Files.newInputStream(part)) {
+            byte[] buf = new byte[65536];
+            long remaining = offset;
+
+            int read;
+            while (remaining > 0 && (read = input.read(buf, 0, (int) Math.min(buf.length, remaining))) > -1) {
+                checksum.update(buf, 0, read);
+                remaining -= read;
+            }
+        }
+        return checksum;
+    }
+
+    /**
+     * Verify the finished part file against the manifest and atomically move it into place,
+     * so the target path only ever contains a complete, verified file. A part file that does
+     * not match is discarded.
+     *
+     * @param written The number of bytes in the part file
+     * @param checksum The Adler32 value computed while downloading
+     */
+    void complete(long written, long checksum) throws IOException {
+        if (written != lib.size || checksum != lib.checksum) {
+            discard();
+            throw new IOException(String.format("Downloaded %s does not match manifest (size %d/%d, checksum %d/%d)",
+                    lib.file, written, lib.size, checksum, lib.checksum));
+        }
+
+        moveAtomically(part, target);
+        Files.deleteIfExists(journal);
+        Files.deleteIfExists(ranges);
+    }
+
+    /**
+     * Replace the target with the source in one step where the filesystem supports it.
+     */
+    static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(source, target, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Remove all traces of the partial download.
+     */
+    void discard() throws IOException {
+        Files.deleteIfExists(part);
+        Files.deleteIfExists(journal);
+        Files.deleteIfExists(ranges);
+    }
+}
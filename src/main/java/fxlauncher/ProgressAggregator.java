@@ -0,0 +1,83 @@
+package fxlauncher;
+
+import javafx.animation.AnimationTimer;
+import javafx.application.Platform;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects download progress from the worker threads and forwards it to the {@link UIProvider}
+ * at most once per JavaFX pulse (about 60 Hz).
+ * <p>
+ * Workers only update primitive atomic counters. The UI is updated from the animation pulse on the
+ * FX application thread, so a fast transfer no longer floods the FX thread with one runnable per buffer.
+ * The transfer rate is sampled every half second and smoothed to give a stable bytes/sec and ETA.
+ */
+class ProgressAggregator extends AnimationTimer implements DownloadEngine.ProgressListener {
+    private static final long SAMPLE_INTERVAL = 500_000_000L;
+
+    private final UIProvider uiProvider;
+    private final double share;
+    private final AtomicLong written = new AtomicLong();
+    private final AtomicLong total = new AtomicLong();
+
+    // Only touched on the FX application thread
+    private long lastWritten = -1;
+    private long sampleTime;
+    private long sampleWritten;
+    private double bytesPerSecond;
+
+    /**
+     * @param uiProvider The UI to report to
+     * @param share The part of the progress bar the download accounts for, between 0 and 1
+     */
+    ProgressAggregator(UIProvider uiProvider, double share) {
+        this.uiProvider = uiProvider;
+        this.share = share;
+    }
+
+    public void progress(long read, long total) {
+        this.total.set(total);
+        // Failed attempts are taken back with negative deltas, so the sum tracks the bytes actually kept
+        this.written.addAndGet(read);
+    }
+
+    /**
+     * Start forwarding progress to the UI.
+     */
+    void begin() {
+        Platform.runLater(this::start);
+    }
+
+    /**
+     * Push the final progress and stop forwarding.
+     */
+    void finish() {
+        Platform.runLater(() -> {
+            handle(System.nanoTime());
+            stop();
+        });
+    }
+
+    public void handle(long now) {
+        long total = this.total.get();
+        long written = Math.max(0, Math.min(this.written.get(), total));
+
+        if (sampleTime == 0) {
+            sampleTime = now;
+            sampleWritten = written;
+        } else if (now - sampleTime >= SAMPLE_INTERVAL) {
+            double current = Math.max(0, written - sampleWritten) * 1e9 / (now - sampleTime);
+            bytesPerSecond = bytesPerSecond == 0 ? current : bytesPerSecond * 0.7 + current * 0.3;
+            sampleTime = now;
+            sampleWritten = written;
+        }
+
+        if (written == lastWritten) return;
+        lastWritten = written;
+
+        double progress = total > 0 ? (double) written / (double) total * share : 0;
+        long secondsRemaining = bytesPerSecond > 0 ? (long) ((total - written) / bytesPerSecond) : -1;
+        uiProvider.updateProgress(progress, (long) bytesPerSecond, secondsRemaining);
+    }
+}
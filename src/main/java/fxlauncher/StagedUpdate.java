@@ -0,0 +1,201 @@
+package fxlauncher;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * An update that was downloaded in the background while the application was running from the cache,
+ * to be applied on the next start.
+ * <p>
+ * Changed files are downloaded into <code>.fxlauncher/staging</code> inside the cache dir, next to a copy
+ * of the remote manifest. Only once all files are verified a <code>READY</code> marker is written, so an
+ * update that was interrupted halfway is never applied and simply continues on the next background run.
+ * Files with a published patch get their cached version linked into the staging dir first, so the patch
+ * is downloaded instead of the whole file.
+ */
+class StagedUpdate {
+    private static final Logger log = Logger.getLogger("Launcher");
+
+    static final String DIRECTORY = "staging";
+    private static final String MANIFEST = "manifest.xml";
+    private static final String MARKER = "READY";
+    private static final String BACKUP = "backup";
+
+    private final Path cacheDir;
+    private final Path stagingDir;
+    private final FileStateIndex stagingIndex;
+
+    StagedUpdate(Path cacheDir) {
+        this.cacheDir = cacheDir;
+        this.stagingDir = cacheDir.resolve(FileStateIndex.DIRECTORY).resolve(DIRECTORY);
+        this.stagingIndex = FileStateIndex.load(stagingDir, false);
+    }
+
+    /**
+     * The index of verified files in the staging dir. The download engine used for
+     * {@link #stage(FXManifest, FileStateIndex, DownloadEngine)} must record into this index.
+     */
+    FileStateIndex getIndex() {
+        return stagingIndex;
+    }
+
+    /**
+     * The lock that guards staging and applying the update when several launcher processes share the cache dir.
+     */
+    Path getLockPath() {
+        return cacheDir.resolve(FileStateIndex.DIRECTORY).resolve(DIRECTORY + ".lock");
+    }
+
+    boolean isReady() {
+        return Files.exists(stagingDir.resolve(MARKER)) && Files.exists(stagingDir.resolve(MANIFEST));
+    }
+
+    /**
+     * Download every file of the remote manifest that is not already valid in the cache dir
+     * into the staging dir, then mark the staged update as ready.
+     */
+    void stage(FXManifest remote, Mirrors mirrors, FileStateIndex cacheIndex, DownloadEngine engine) throws Exception {
+        Files.deleteIfExists(stagingDir.resolve(MARKER));
+        Files.createDirectories(stagingDir);
+
+        List<LibraryFile> changed = remote.files.stream()
+                .filter(LibraryFile::loadForCurrentPlatform)
+                .filter(it -> it.isSynced(cacheDir))
+                .filter(it -> it.needsUpdate(cacheDir, cacheIndex))
+                .collect(Collectors.toList());
+
+        for (LibraryFile lib : changed)
+            if (lib.patchFrom != null) stagePatchBase(lib);
+
+        log.info(String.format("Staging %d changed files in %s", changed.size(), stagingDir));
+        try {
+            engine.download(changed, mirrors, stagingDir, (read, total) -> { });
+        } finally {
+            stagingIndex.save();
+        }
+
+        remote.save(stagingDir.resolve(MANIFEST));
+        remote.saveValidators(stagingDir.resolve(MANIFEST));
+        Files.createFile(stagingDir.resolve(MARKER));
+    }
+
+    /**
+     * Put the cached version of a file into the staging dir, where the download engine finds it as the base
+     * of the patch. The cached file is hard linked where possible. That's safe because the engine always moves
+     * a new file over its target instead of writing into it.
+     */
+    private void stagePatchBase(LibraryFile lib) {
+        Path base = cacheDir.resolve(lib.file);
+        Path staged = stagingDir.resolve(lib.file);
+        if (!Files.exists(base) || Files.exists(staged)) return;
+        try {
+            Files.createDirectories(staged.getParent());
+            try {
+                Files.createLink(staged, base);
+            } catch (IOException | UnsupportedOperationException e) {
+                Files.copy(base, staged);
+            }
+        } catch (IOException e) {
+            log.log(Level.INFO, String.format("Unable to stage %s as patch base, downloading the whole file", lib.file), e);
+        }
+    }
+
+    /**
+     * Move the staged files and manifest into the cache dir and remove the staging dir.
+     * <p>
+     * The update is applied as a whole or not at all. Every cached file that is replaced is first moved
+     * aside into the staging dir, which fails while e.g. Windows holds a lock on the jar. If any file or the
+     * manifest can't be moved, the files moved so far are put back, so the cache dir never pairs new jars
+     * with the old manifest. The staged update is left in place to be applied on a later start.
+     *
+     * @return The manifest of the applied update
+     */
+    FXManifest apply(FileStateIndex cacheIndex) throws IOException {
+        FXManifest staged = ManifestReader.read(stagingDir.resolve(MANIFEST));
+        Path backupDir = stagingDir.resolve(BACKUP);
+        Path manifestPath = staged.getPath(cacheDir);
+
+        List<LibraryFile> applied = new ArrayList<>();
+        List<Path> backedUp = new ArrayList<>();
+        try {
+            for (LibraryFile lib : staged.files) {
+                // Skip files left over from an older staged version
+                if (!lib.loadForCurrentPlatform() || lib.needsUpdate(stagingDir, stagingIndex)) continue;
+
+                Path target = cacheDir.resolve(lib.file);
+                Files.createDirectories(target.getParent());
+                if (Files.exists(target)) {
+                    Path backup = backupDir.resolve(lib.file);
+                    Files.createDirectories(backup.getParent());
+                    PartialDownload.moveAtomically(target, backup);
+                    backedUp.add(target);
+                }
+                PartialDownload.moveAtomically(stagingDir.resolve(lib.file), target);
+                applied.add(lib);
+            }
+
+            // A stale validator only costs a full response, so it goes before the manifest
+            Files.deleteIfExists(FXManifest.getValidatorsPath(manifestPath));
+            Files.move(stagingDir.resolve(MANIFEST), manifestPath, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            rollback(applied, backedUp, backupDir);
+            throw e;
+        }
+
+        // The staged files were verified against the manifest when they were downloaded
+        for (LibraryFile lib : applied) cacheIndex.record(lib.file, cacheDir.resolve(lib.file), lib.checksum);
+
+        Path validators = FXManifest.getValidatorsPath(stagingDir.resolve(MANIFEST));
+        if (Files.exists(validators))
+            Files.move(validators, FXManifest.getValidatorsPath(manifestPath), StandardCopyOption.REPLACE_EXISTING);
+        discard();
+
+        log.info(String.format("Applied staged update %s", staged.ts));
+        return staged;
+    }
+
+    /**
+     * Move the applied files back into the staging dir and the cached files they replaced back into the cache dir.
+     */
+    private void rollback(List<LibraryFile> applied, List<Path> backedUp, Path backupDir) {
+        for (LibraryFile lib : applied) {
+            try {
+                PartialDownload.moveAtomically(cacheDir.resolve(lib.file), stagingDir.resolve(lib.file));
+            } catch (IOException e) {
+                log.log(Level.WARNING, String.format("Unable to roll back staged file %s", lib.file), e);
+            }
+        }
+        for (Path target : backedUp) {
+            try {
+                PartialDownload.moveAtomically(backupDir.resolve(cacheDir.relativize(target)), target);
+            } catch (IOException e) {
+                log.log(Level.WARNING, String.format("Unable to restore %s", target), e);
+            }
+        }
+    }
+
+    /**
+     * Remove the staging dir and everything in it.
+     */
+    void discard() throws IOException {
+        if (!Files.exists(stagingDir)) return;
+
+        Files.walkFileTree(stagingDir, new SimpleFileVisitor<Path>() {
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
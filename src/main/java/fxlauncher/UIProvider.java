@@ -64,6 +64,20 @@ public interface UIProvider {
 	 * @param progress A number between 0 and 1
 	 */
 	void updateProgress(double progress);
+
+	/**
+	 * Called when the update/download progress is changing, with the current transfer rate
+	 * and an estimate of the remaining time. Called at most once per frame on the FX application thread.
+	 *
+	 * The default implementation delegates to {@link #updateProgress(double)}.
+	 *
+	 * @param progress A number between 0 and 1
+	 * @param bytesPerSecond The smoothed transfer rate, 0 until it is known
+	 * @param secondsRemaining The estimated time to completion, or -1 if unknown
+	 */
+	default void updateProgress(double progress, long bytesPerSecond, long secondsRemaining) {
+		updateProgress(progress);
+	}
         
         /**
 	 * 